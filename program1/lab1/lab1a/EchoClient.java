@@ -0,0 +1,163 @@
+/**
+ * @author Youssef Beltagy
+ *
+ * Measures round trip times against an EchoServer started with "framed".
+ * Opens a number of connections at once, and over each sends requests
+ * of a given size with up to a given number of them in flight (the
+ * pipeline depth). A writer thread sends the requests of a connection
+ * and a reader thread takes the echoes, which come back in order, so
+ * every echo is timed against its own request. Prints one CSV line
+ * with the throughput and the RTT percentiles over all connections.
+ *
+ * usage: java EchoClient server_ip port [connections] [requests] [size] [pipeline]
+ *
+ * requests is per connection. The defaults are 1 connection, 10000
+ * requests of 1024 bytes, and a pipeline of 1 (one request at a time).
+ */
+
+import java.net.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class EchoClient {
+    private static final int WARMUP = 100; // untimed requests per connection
+
+    public static void main( String args[] ) {
+		if ( args.length < 2 || args.length > 6 ) {
+			System.err.println( "usage: java EchoClient server_ip port [connections] " +
+								"[requests] [size] [pipeline]" );
+			return;
+		}
+		String host = args[0];
+		int port = Integer.parseInt( args[1] );
+		int connections = ( args.length > 2 ) ? Integer.parseInt( args[2] ) : 1;
+		int requests = ( args.length > 3 ) ? Integer.parseInt( args[3] ) : 10000;
+		int size = ( args.length > 4 ) ? Integer.parseInt( args[4] ) : 1024;
+		int pipeline = ( args.length > 5 ) ? Integer.parseInt( args[5] ) : 1;
+		if ( connections <= 0 || requests <= 0 || size <= 0 || pipeline <= 0 ) {
+			System.err.println( "usage: java EchoClient server_ip port [connections] " +
+								"[requests] [size] [pipeline]" );
+			System.err.println( "connections, requests, size and pipeline must be positive" );
+			return;
+		}
+
+		try {
+			ExecutorService threads = Executors.newCachedThreadPool( );
+			List<Future<long[]>> results = new ArrayList<Future<long[]>>( );
+			CountDownLatch ready = new CountDownLatch( connections );
+			AtomicLong start = new AtomicLong( );
+			for ( int c = 0; c < connections; c++ ) {
+				results.add( threads.submit( ( ) ->
+						measure( host, port, requests, size, pipeline, threads, ready, start ) ) );
+			}
+
+			long[] rtts = new long[connections * requests];
+			int count = 0;
+			for ( Future<long[]> result : results ) {
+				long[] connection = result.get( );
+				System.arraycopy( connection, 0, rtts, count, connection.length );
+				count += connection.length;
+			}
+			long elapsed = System.nanoTime( ) - start.get( );
+			threads.shutdown( );
+
+			Arrays.sort( rtts );
+			double seconds = elapsed / 1e9;
+			System.out.println( "connections,requests,size,pipeline,requests_per_sec,mb_per_sec," +
+								"mean_us,p50_us,p90_us,p99_us,p999_us,max_us" );
+			System.out.printf( "%d,%d,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f%n",
+							   connections, requests, size, pipeline,
+							   rtts.length / seconds, 2.0 * size * rtts.length / ( 1 << 20 ) / seconds,
+							   Arrays.stream( rtts ).average( ).orElse( 0 ) / 1e3,
+							   percentile( rtts, 0.50 ), percentile( rtts, 0.90 ),
+							   percentile( rtts, 0.99 ), percentile( rtts, 0.999 ),
+							   rtts[rtts.length - 1] / 1e3 );
+		} catch ( Exception e ) {
+			e.printStackTrace( );
+		}
+    }
+
+    /**
+     * Sends the requests of one connection and times their echoes.
+     *
+     * @param threads runs this connection's writer
+     * @param ready   counted down once warmed up; timing starts when all are
+     * @param start   set to when the timed requests started
+     * @return the round trip time of every timed request, in nanoseconds.
+     */
+    private static long[] measure( String host, int port, int requests, int size, int pipeline,
+								   ExecutorService threads, CountDownLatch ready,
+								   AtomicLong start ) throws Exception {
+		try ( Socket socket = new Socket( host, port ) ) {
+			socket.setTcpNoDelay( true );
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream( socket.getInputStream( ), 1 << 16 ) );
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream( socket.getOutputStream( ), 1 << 16 ) );
+
+			byte[] data = new byte[size];
+			for ( int i = 0; i < size; i++ )
+				data[i] = ( byte )( i % 128 );
+
+			// warm up one request at a time, then wait for the other connections
+			byte[] echo = new byte[size];
+			for ( int i = 0; i < WARMUP; i++ ) {
+				send( out, data );
+				out.flush( );
+				receive( in, echo );
+			}
+			ready.countDown( );
+			ready.await( );
+			start.compareAndSet( 0, System.nanoTime( ) );
+
+			// the writer keeps up to pipeline requests in flight
+			Semaphore window = new Semaphore( pipeline );
+			ArrayBlockingQueue<Long> sent = new ArrayBlockingQueue<Long>( pipeline );
+			Future<?> writer = threads.submit( ( ) -> {
+				for ( int i = 0; i < requests; i++ ) {
+					window.acquire( );
+					sent.add( System.nanoTime( ) );
+					send( out, data );
+					// flush unless another request can follow right away
+					if ( window.availablePermits( ) == 0 || i == requests - 1 )
+						out.flush( );
+				}
+				return null;
+			} );
+
+			long[] rtts = new long[requests];
+			for ( int i = 0; i < requests; i++ ) {
+				receive( in, echo );
+				rtts[i] = System.nanoTime( ) - sent.take( );
+				window.release( );
+			}
+			writer.get( );
+
+			if ( !Arrays.equals( data, echo ) )
+				throw new IllegalStateException( "the echo does not match the request" );
+			return rtts;
+		}
+    }
+
+    private static void send( DataOutputStream out, byte[] data ) throws IOException {
+		out.writeInt( data.length );
+		out.write( data );
+    }
+
+    private static void receive( DataInputStream in, byte[] echo ) throws IOException {
+		int length = in.readInt( );
+		if ( length != echo.length )
+			throw new StreamCorruptedException( "echo of " + length + " bytes, expected " + echo.length );
+		in.readFully( echo );
+    }
+
+    /**
+     * @return a percentile of sorted round trip times, in microseconds.
+     */
+    private static double percentile( long[] sorted, double fraction ) {
+		int index = ( int )Math.ceil( fraction * sorted.length ) - 1;
+		return sorted[Math.max( 0, Math.min( index, sorted.length - 1 ) )] / 1e3;
+    }
+}
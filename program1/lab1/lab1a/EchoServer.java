@@ -1,18 +1,33 @@
 /**
  * @author Youssef Beltagy
+ *
+ * With a second argument "framed" the server echoes length-framed
+ * messages (an int length followed by that many bytes) of any size, keeps
+ * every connection open until the client closes it, and serves every
+ * connection on a pooled thread, so many clients can measure at once (see
+ * EchoClient). Requests may be pipelined: the replies go out in order,
+ * flushed whenever no more requests are waiting to be read.
  */
 
 import java.net.*;
 import java.io.*;
+import java.util.concurrent.*;
 
 public class EchoServer {
+    private static final int MAX_MESSAGE = 64 << 20; // longest framed message
+
     public static void main( String args[] ) {
 
-		if ( args.length != 1 ) {
-			System.err.println( "usage: java TcpServer port" );
+		if ( args.length != 1 && !( args.length == 2 && args[1].equals( "framed" ) ) ) {
+			System.err.println( "usage: java TcpServer port [framed]" );
 			return;
         }
 		try {	
+			if ( args.length == 2 ) {
+				serveFramed( Integer.parseInt( args[0] ) );
+				return;
+			}
+
 			// create a server socket
 			ServerSocket server = new ServerSocket( Integer.parseInt( args[0] ) );
 			while ( true ) {
@@ -44,4 +59,62 @@ public class EchoServer {
 			e.printStackTrace( );
 		}
     }
+
+    /**
+     * Accepts connections forever and echoes each on a pooled thread.
+     */
+    private static void serveFramed( int port ) throws IOException {
+		ServerSocket server = new ServerSocket( port );
+		ExecutorService threads = Executors.newCachedThreadPool( );
+		while ( true ) {
+			Socket client = server.accept( );
+			client.setTcpNoDelay( true );
+			threads.execute( ( ) -> echoFramed( client ) );
+		}
+    }
+
+    /**
+     * Echoes every message of a client until it closes the connection.
+     */
+    private static void echoFramed( Socket client ) {
+		try {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream( client.getInputStream( ), 1 << 16 ) );
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream( client.getOutputStream( ), 1 << 16 ) );
+			byte[] data = new byte[1024];
+
+			while ( true ) {
+				int length;
+				try {
+					length = in.readInt( );
+				} catch ( EOFException e ) {
+					return; // the client is done
+				}
+				if ( length < 0 || length > MAX_MESSAGE )
+					throw new StreamCorruptedException( "bad message length " + length );
+				if ( data.length < length )
+					data = new byte[Math.max( length, data.length * 2 )];
+
+				// read a message, however many reads it takes
+				in.readFully( data, 0, length );
+
+				// repeat the message
+				out.writeInt( length );
+				out.write( data, 0, length );
+
+				// send the replies once the pipelined requests are answered
+				if ( in.available( ) == 0 )
+					out.flush( );
+			}
+		} catch ( IOException e ) {
+			e.printStackTrace( );
+		} finally {
+			try {
+				client.close( );
+			} catch ( IOException e ) {
+				// closing anyway
+			}
+		}
+    }
 }
@@ -0,0 +1,422 @@
+/**
+ * Measures how fast a double[] makes a round trip over TCP with different
+ * wire codecs, payload sizes, and with or without reusing the connection.
+ *
+ * The server multiplies every array it receives by two and sends it back,
+ * like TcpServerDouble, in whatever transport the client asked for:
+ *
+ *   object    ObjectOutputStream.writeObject, as TcpClientDouble does
+ *   data      DataOutputStream.writeDouble, one double at a time
+ *   heap      SocketChannel with a heap ByteBuffer and putDouble
+ *   direct    SocketChannel with a direct ByteBuffer and putDouble
+ *   doubles   SocketChannel with a direct ByteBuffer and a bulk put
+ *             through its DoubleBuffer view
+ *
+ * Every transport but object sends an int count followed by the doubles.
+ * A connection starts with one byte, the index of its transport.
+ *
+ * For every transport, size and reuse the client runs a few untimed round
+ * trips to warm up and then times every round trip, and prints one CSV
+ * line with the throughput (bytes sent plus bytes received per second)
+ * and latency percentiles. Without reuse, every round trip opens its own
+ * connection and the timing includes the connect.
+ *
+ * usage: java TcpBenchmark server port
+ *        java TcpBenchmark client port server_ip [sizes] [iterations] [transports]
+ *        java TcpBenchmark local port [sizes] [iterations] [transports]
+ *
+ * sizes and transports are comma separated lists; sizes are numbers of
+ * doubles (1,128,16384,1048576 by default) and iterations (1000 by
+ * default) is capped so no run moves more than 256 MB each way.
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.net.*;                 // for InetSocketAddress
+import java.io.*;                  // for streams, IOException
+import java.nio.*;                 // for ByteBuffer, DoubleBuffer
+import java.nio.channels.*;        // for SocketChannel, ServerSocketChannel
+import java.util.*;                // for Arrays
+import java.util.concurrent.*;     // for ExecutorService
+
+public class TcpBenchmark {
+    private static final String[] TRANSPORTS = { "object", "data", "heap", "direct", "doubles" };
+    private static final long RUN_BYTES = 256L << 20; // most bytes one run sends
+    private static final int WARMUP = 20;             // untimed round trips per run
+
+    /**
+     * One end of a connection, sending and receiving arrays in one transport.
+     */
+    private static abstract class Endpoint implements Closeable {
+        protected SocketChannel channel; // the connection
+
+        /**
+         * Sends an array.
+         */
+        abstract void send( double[] data ) throws IOException;
+
+        /**
+         * Receives an array.
+         *
+         * @param reuse an array to receive into if it has the right length
+         * @return the array received, or null if the peer closed the connection.
+         */
+        abstract double[] receive( double[] reuse ) throws IOException;
+
+        public void close( ) throws IOException {
+            channel.close( );
+        }
+    }
+
+    /**
+     * ObjectOutputStream and ObjectInputStream.
+     */
+    private static class ObjectEndpoint extends Endpoint {
+        private ObjectOutputStream out;
+        private ObjectInputStream in;
+
+        ObjectEndpoint( SocketChannel newChannel ) throws IOException {
+            channel = newChannel;
+            Socket socket = channel.socket( );
+            out = new ObjectOutputStream( new BufferedOutputStream( socket.getOutputStream( ), 1 << 16 ) );
+            out.flush( ); // the stream header, which the peer's ObjectInputStream waits for
+            in = new ObjectInputStream( new BufferedInputStream( socket.getInputStream( ), 1 << 16 ) );
+        }
+
+        void send( double[] data ) throws IOException {
+            out.writeObject( data );
+            out.reset( ); // or the next send of the same array is only a back reference
+            out.flush( );
+        }
+
+        double[] receive( double[] reuse ) throws IOException {
+            try {
+                return ( double[] )in.readObject( );
+            } catch ( EOFException e ) {
+                return null;
+            } catch ( ClassNotFoundException e ) {
+                throw new StreamCorruptedException( e.toString( ) );
+            }
+        }
+    }
+
+    /**
+     * DataOutputStream and DataInputStream, one double at a time.
+     */
+    private static class DataEndpoint extends Endpoint {
+        private DataOutputStream out;
+        private DataInputStream in;
+
+        DataEndpoint( SocketChannel newChannel ) throws IOException {
+            channel = newChannel;
+            Socket socket = channel.socket( );
+            out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream( ), 1 << 16 ) );
+            in = new DataInputStream( new BufferedInputStream( socket.getInputStream( ), 1 << 16 ) );
+        }
+
+        void send( double[] data ) throws IOException {
+            out.writeInt( data.length );
+            for ( int i = 0; i < data.length; i++ )
+                out.writeDouble( data[i] );
+            out.flush( );
+        }
+
+        double[] receive( double[] reuse ) throws IOException {
+            int count;
+            try {
+                count = in.readInt( );
+            } catch ( EOFException e ) {
+                return null;
+            }
+            double[] data = arrayOf( count, reuse );
+            for ( int i = 0; i < count; i++ )
+                data[i] = in.readDouble( );
+            return data;
+        }
+    }
+
+    /**
+     * A blocking SocketChannel and one ByteBuffer, heap or direct, that is
+     * filled either with putDouble or in bulk through a DoubleBuffer view.
+     */
+    private static class BufferEndpoint extends Endpoint {
+        private boolean direct;       // whether the buffer is direct
+        private boolean view;         // whether doubles go through a DoubleBuffer view
+        private ByteBuffer buffer;    // the frame being sent or received
+        private ByteBuffer header;    // the count of a frame being received
+
+        BufferEndpoint( SocketChannel newChannel, boolean newDirect, boolean newView ) {
+            channel = newChannel;
+            direct = newDirect;
+            view = newView;
+            buffer = allocate( 1 << 16 );
+            header = ByteBuffer.allocate( 4 );
+        }
+
+        void send( double[] data ) throws IOException {
+            ensure( 4 + 8 * data.length );
+            buffer.putInt( data.length );
+            if ( view ) {
+                buffer.asDoubleBuffer( ).put( data );
+                buffer.position( buffer.position( ) + 8 * data.length );
+            } else {
+                for ( int i = 0; i < data.length; i++ )
+                    buffer.putDouble( data[i] );
+            }
+            buffer.flip( );
+            while ( buffer.hasRemaining( ) )
+                channel.write( buffer );
+        }
+
+        double[] receive( double[] reuse ) throws IOException {
+            header.clear( );
+            if ( !readFully( header ) )
+                return null;
+            int count = header.getInt( 0 );
+            double[] data = arrayOf( count, reuse ); // checks count before it sizes the buffer
+            ensure( 8 * count );
+            buffer.limit( 8 * count );
+            if ( !readFully( buffer ) )
+                throw new EOFException( "connection closed inside an array" );
+            buffer.flip( );
+
+            if ( view ) {
+                buffer.asDoubleBuffer( ).get( data );
+            } else {
+                for ( int i = 0; i < count; i++ )
+                    data[i] = buffer.getDouble( );
+            }
+            return data;
+        }
+
+        /**
+         * Fills a buffer from the channel, however many reads it takes.
+         *
+         * @return false if the peer closed the connection before the first byte.
+         */
+        private boolean readFully( ByteBuffer target ) throws IOException {
+            while ( target.hasRemaining( ) ) {
+                if ( channel.read( target ) < 0 ) {
+                    if ( target.position( ) == 0 )
+                        return false;
+                    throw new EOFException( "connection closed inside a frame" );
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Clears the buffer, replacing it if it holds fewer than size bytes.
+         */
+        private void ensure( int size ) {
+            if ( buffer.capacity( ) < size )
+                buffer = allocate( Math.max( size, buffer.capacity( ) * 2 ) );
+            buffer.clear( );
+        }
+
+        private ByteBuffer allocate( int size ) {
+            return direct ? ByteBuffer.allocateDirect( size ) : ByteBuffer.allocate( size );
+        }
+    }
+
+    /**
+     * @return reuse if it holds count doubles, or else a new array.
+     */
+    private static double[] arrayOf( int count, double[] reuse ) throws IOException {
+        if ( count < 0 || count > Integer.MAX_VALUE / 8 )
+            throw new StreamCorruptedException( "bad count " + count );
+        return ( reuse != null && reuse.length == count ) ? reuse : new double[count];
+    }
+
+    /**
+     * @return an endpoint speaking a transport over a connection.
+     */
+    private static Endpoint endpoint( int transport, SocketChannel channel ) throws IOException {
+        channel.socket( ).setTcpNoDelay( true );
+        switch ( TRANSPORTS[transport] ) {
+        case "object":
+            return new ObjectEndpoint( channel );
+        case "data":
+            return new DataEndpoint( channel );
+        case "heap":
+            return new BufferEndpoint( channel, false, false );
+        case "direct":
+            return new BufferEndpoint( channel, true, false );
+        default:
+            return new BufferEndpoint( channel, true, true );
+        }
+    }
+
+    /**
+     * Accepts connections forever, and serves every one on its own thread.
+     */
+    private static void serve( ServerSocketChannel server ) throws IOException {
+        ExecutorService threads = Executors.newCachedThreadPool( task -> {
+            Thread thread = new Thread( task );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        while ( true ) {
+            SocketChannel channel = server.accept( );
+            threads.execute( ( ) -> echo( channel ) );
+        }
+    }
+
+    /**
+     * Receives arrays from a client, multiplies them by two and sends them
+     * back until the client closes the connection.
+     */
+    private static void echo( SocketChannel channel ) {
+        try {
+            ByteBuffer first = ByteBuffer.allocate( 1 );
+            while ( first.hasRemaining( ) ) {
+                if ( channel.read( first ) < 0 )
+                    return;
+            }
+            int transport = first.get( 0 );
+            if ( transport < 0 || transport >= TRANSPORTS.length )
+                throw new StreamCorruptedException( "unknown transport " + transport );
+
+            Endpoint endpoint = endpoint( transport, channel );
+            double[] data = null;
+            while ( ( data = endpoint.receive( data ) ) != null ) {
+                for ( int i = 0; i < data.length; i++ )   // modify data
+                    data[i] *= 2;
+                endpoint.send( data );
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace( );
+        } finally {
+            try {
+                channel.close( );
+            } catch ( IOException e ) {
+                // closing anyway
+            }
+        }
+    }
+
+    /**
+     * @return a new connection to the server speaking a transport.
+     */
+    private static Endpoint connect( InetSocketAddress server, int transport ) throws IOException {
+        SocketChannel channel = SocketChannel.open( server );
+        channel.write( ByteBuffer.wrap( new byte[] { ( byte )transport } ) );
+        return endpoint( transport, channel );
+    }
+
+    /**
+     * Times the round trips of one transport, size and reuse, and prints
+     * its CSV line.
+     */
+    private static void run( InetSocketAddress server, int transport, int size,
+                             boolean reuse, int iterations ) throws IOException {
+        double[] data = new double[size];       // initialize data
+        for ( int i = 0; i < size; i++ )
+            data[i] = ( double )( i % 128 );
+        double[] reply = null;
+
+        long[] nanos = new long[iterations];
+        Endpoint endpoint = reuse ? connect( server, transport ) : null;
+        long start = 0;
+        for ( int i = -WARMUP; i < iterations; i++ ) {
+            if ( i == 0 )
+                start = System.nanoTime( );
+            long before = System.nanoTime( );
+            if ( !reuse )
+                endpoint = connect( server, transport );
+            endpoint.send( data );
+            reply = endpoint.receive( reply );
+            if ( !reuse )
+                endpoint.close( );
+            if ( i >= 0 )
+                nanos[i] = System.nanoTime( ) - before;
+        }
+        long elapsed = System.nanoTime( ) - start;
+        if ( reuse )
+            endpoint.close( );
+
+        for ( int i = 0; i < size; i++ ) {      // check the last reply
+            if ( reply[i] != 2 * data[i] )
+                throw new IllegalStateException( TRANSPORTS[transport] + " returned " +
+                                                 reply[i] + " for " + data[i] );
+        }
+
+        Arrays.sort( nanos );
+        double seconds = elapsed / 1e9;
+        double megabytes = 2.0 * 8 * size * iterations / ( 1 << 20 );
+        System.out.printf( "%s,%d,%b,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f%n",
+                           TRANSPORTS[transport], size, reuse, iterations,
+                           megabytes / seconds, elapsed / 1e3 / iterations,
+                           percentile( nanos, 0.50 ), percentile( nanos, 0.90 ),
+                           percentile( nanos, 0.99 ), nanos[iterations - 1] / 1e3 );
+    }
+
+    /**
+     * @return a percentile of sorted round trip times, in microseconds.
+     */
+    private static double percentile( long[] sorted, double fraction ) {
+        int index = ( int )Math.ceil( fraction * sorted.length ) - 1;
+        return sorted[Math.max( 0, Math.min( index, sorted.length - 1 ) )] / 1e3;
+    }
+
+    /**
+     * Sweeps every transport, size and reuse.
+     */
+    private static void sweep( InetSocketAddress server, String args[], int from ) throws IOException {
+        String sizes = ( args.length > from ) ? args[from] : "1,128,16384,1048576";
+        int iterations = ( args.length > from + 1 ) ? Integer.parseInt( args[from + 1] ) : 1000;
+        String transports = ( args.length > from + 2 ) ? args[from + 2] : String.join( ",", TRANSPORTS );
+
+        System.out.println( "transport,size,reuse,iterations,mb_per_sec,mean_us,p50_us,p90_us,p99_us,max_us" );
+        for ( String name : transports.split( "," ) ) {
+            int transport = Arrays.asList( TRANSPORTS ).indexOf( name.trim( ) );
+            if ( transport < 0 ) {
+                System.err.println( "unknown transport " + name + ", expected one of " +
+                                    String.join( ",", TRANSPORTS ) );
+                continue;
+            }
+            for ( String size : sizes.split( "," ) ) {
+                int count = Integer.parseInt( size.trim( ) );
+                int runs = ( int )Math.max( 1, Math.min( iterations, RUN_BYTES / ( 8L * Math.max( 1, count ) ) ) );
+                run( server, transport, count, true, runs );
+                run( server, transport, count, false, runs );
+            }
+        }
+    }
+
+    public static void main( String args[] ) {
+        if ( args.length < 2 || ( args[0].equals( "client" ) && args.length < 3 ) ) {
+            System.err.println( "usage: java TcpBenchmark server port\n" +
+                                "       java TcpBenchmark client port server_ip [sizes] [iterations] [transports]\n" +
+                                "       java TcpBenchmark local port [sizes] [iterations] [transports]" );
+            return;
+        }
+        try {
+            int port = Integer.parseInt( args[1] );
+            switch ( args[0] ) {
+            case "server":
+                serve( ServerSocketChannel.open( ).bind( new InetSocketAddress( port ) ) );
+                break;
+            case "client":
+                sweep( new InetSocketAddress( args[2], port ), args, 3 );
+                break;
+            default:
+                // the server runs in this JVM, on its own threads
+                ServerSocketChannel server = ServerSocketChannel.open( ).bind( new InetSocketAddress( port ) );
+                Thread serving = new Thread( ( ) -> {
+                    try {
+                        serve( server );
+                    } catch ( IOException e ) {
+                        e.printStackTrace( );
+                    }
+                } );
+                serving.setDaemon( true );
+                serving.start( );
+                sweep( new InetSocketAddress( "127.0.0.1", port ), args, 2 );
+            }
+        } catch ( Exception e ) {
+            e.printStackTrace( );
+        }
+    }
+}
@@ -11,7 +11,7 @@ public class TcpClientByte {
 	    // establish a connection
 	    Socket socket = new Socket( args[2], Integer.parseInt( args[0] ) );
 	    OutputStream out = socket.getOutputStream( );
-	    InputStream in = socket.getInputStream( );
+	    DataInputStream in = new DataInputStream( socket.getInputStream( ) );
 
 	    int size = Integer.parseInt( args[1] );
 	    byte[] data = new byte[size];       // initialize data
@@ -19,7 +19,7 @@ public class TcpClientByte {
 		data[i] = ( byte )( i % 128);
 
 	    out.write( data );                  // send data
-	    in.read( data );                    // receive data
+	    in.readFully( data );               // receive data, however many reads it takes
 	    for ( int i = 0; i < size; i++ )    // print results
 		System.out.println( data[i] );
 
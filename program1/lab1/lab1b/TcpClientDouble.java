@@ -1,17 +1,29 @@
 /**
  * @author Youssef Beltagy
+ *
+ * With "nio" after the server the client talks to a TcpServerDouble
+ * started with "nio": it sends the array repeat times (1 by default) over
+ * one connection, from and back into the same direct buffer, and prints
+ * every reply and how long its round trip took.
 */
 
 import java.net.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 
 public class TcpClientDouble {
     public static void main( String args[] ) {
-	if ( args.length != 3 ) {
-	    System.err.println( "usage: java TcpClient port size server_ip" );
+	if ( args.length != 3 && !( args.length >= 4 && args.length <= 5 && args[3].equals( "nio" ) ) ) {
+	    System.err.println( "usage: java TcpClient port size server_ip [nio [repeat]]" );
 	    return;
 	}
 	try {
+		if ( args.length > 3 ) {
+			sendBulk( Integer.parseInt( args[0] ), Integer.parseInt( args[1] ), args[2],
+					( args.length == 5 ) ? Integer.parseInt( args[4] ) : 1 );
+			return;
+		}
 	    // establish a connection
 		Socket socket = new Socket( args[2], Integer.parseInt( args[0] ) );
 
@@ -38,4 +50,40 @@ public class TcpClientDouble {
 	    e.printStackTrace( );
 	}
     }
+
+    /**
+     * Sends an array repeat times over one connection and prints the replies.
+     */
+    private static void sendBulk( int port, int size, String server, int repeat ) throws IOException {
+	try ( SocketChannel channel = SocketChannel.open( new InetSocketAddress( server, port ) ) ) {
+		channel.socket( ).setTcpNoDelay( true );
+		ByteBuffer header = ByteBuffer.allocate( 4 ).order( ByteOrder.LITTLE_ENDIAN );
+		ByteBuffer buffer = ByteBuffer.allocateDirect( 8 * size ).order( ByteOrder.LITTLE_ENDIAN );
+		DoubleBuffer data = buffer.asDoubleBuffer( );
+
+		for ( int r = 0; r < repeat; r++ ) {
+			for ( int i = 0; i < size; i++ )    // initialize data
+				data.put( i, ( double )( i % 128 ) );
+
+			long start = System.nanoTime( );
+			header.clear( );
+			header.putInt( 0, size );
+			buffer.clear( );
+			ByteBuffer[] request = { header, buffer };
+			while ( buffer.hasRemaining( ) || header.hasRemaining( ) )
+				channel.write( request );      // send data
+
+			header.clear( );                    // receive data into the same buffer
+			buffer.clear( );
+			if ( !TcpServerDouble.readFully( channel, header ) || header.getInt( 0 ) != size
+			     || !TcpServerDouble.readFully( channel, buffer ) )
+				throw new StreamCorruptedException( "unexpected reply" );
+			long elapsed = System.nanoTime( ) - start;
+
+			for ( int i = 0; i < size; i++ )    // print results
+				System.out.println( data.get( i ) );
+			System.err.printf( "round trip %d: %.3f ms%n", r + 1, elapsed / 1e6 );
+		}
+	}
+    }
 }
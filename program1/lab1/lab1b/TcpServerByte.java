@@ -14,11 +14,11 @@ public class TcpServerByte {
 	    while ( true ) {
 		// establslih a connection
 		Socket socket = svr.accept( );    
-		InputStream in = socket.getInputStream( );
+		DataInputStream in = new DataInputStream( socket.getInputStream( ) );
 		OutputStream out = socket.getOutputStream( );
 	    
 		byte[] data = new byte[size];      // receive data
-		in.read( data );
+		in.readFully( data );              // a single read may return less
 		for ( int i = 0; i < size; i++ )   // modify data
 		    data[i] *= multiplier;
 		out.write( data );                 // send back data
@@ -1,17 +1,30 @@
 /**
  * @author Youssef Beltagy
+ *
+ * With a third argument "nio" the server keeps every connection open and
+ * serves as many arrays on it as the client sends, each as an int count
+ * followed by the doubles, little-endian (the byte order of x86 and ARM,
+ * so the DoubleBuffer views below need no byte swapping). Every array is
+ * read into one direct buffer, multiplied in place and written back from
+ * it, and the multiplier doubles after every array of a connection.
 */
 
 import java.net.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 
 public class TcpServerDouble {
     public static void main( String args[] ) {
-	if ( args.length != 2 ) {
-	    System.err.println( "usage: java TcpServer port size" );
+	if ( args.length != 2 && !( args.length == 3 && args[2].equals( "nio" ) ) ) {
+	    System.err.println( "usage: java TcpServer port size [nio]" );
 	    return;
 	}
 	try {
+		if ( args.length == 3 ) {
+			serveBulk( Integer.parseInt( args[0] ), Integer.parseInt( args[1] ) );
+			return;
+		}
 
 		ServerSocket svr = new ServerSocket( Integer.parseInt( args[0] ) );
 
@@ -41,4 +54,77 @@ public class TcpServerDouble {
 	    e.printStackTrace( );
 	}
     }
+
+    /**
+     * Accepts connections forever and serves each on its own thread.
+     *
+     * @param size the number of doubles to size every buffer for at first
+     */
+    private static void serveBulk( int port, int size ) throws IOException {
+	ServerSocketChannel svr = ServerSocketChannel.open( ).bind( new InetSocketAddress( port ) );
+	while ( true ) {
+		SocketChannel channel = svr.accept( );
+		new Thread( ( ) -> echoBulk( channel, size ) ).start( );
+	}
+    }
+
+    /**
+     * Multiplies and sends back every array a client sends, until it
+     * closes the connection.
+     */
+    private static void echoBulk( SocketChannel channel, int size ) {
+	try {
+		channel.socket( ).setTcpNoDelay( true );
+		ByteBuffer header = ByteBuffer.allocate( 4 ).order( ByteOrder.LITTLE_ENDIAN );
+		ByteBuffer buffer = ByteBuffer.allocateDirect( 8 * size ).order( ByteOrder.LITTLE_ENDIAN );
+		double multiplier = 1;
+
+		while ( readFully( channel, header ) ) {
+			int count = header.getInt( 0 );
+			if ( count < 0 || count > Integer.MAX_VALUE / 8 )
+				throw new StreamCorruptedException( "bad count " + count );
+			if ( buffer.capacity( ) < 8 * count )
+				buffer = ByteBuffer.allocateDirect( 8 * count ).order( ByteOrder.LITTLE_ENDIAN );
+
+			buffer.clear( ).limit( 8 * count );   // receive data
+			if ( !readFully( channel, buffer ) )
+				throw new EOFException( "connection closed inside an array" );
+
+			DoubleBuffer data = buffer.flip( ).asDoubleBuffer( );
+			for ( int i = 0; i < count; i++ )   // modify data in place
+				data.put( i, data.get( i ) * multiplier );
+
+			header.flip( );                      // send back data
+			ByteBuffer[] reply = { header, buffer };
+			while ( header.hasRemaining( ) || buffer.hasRemaining( ) )
+				channel.write( reply );
+			header.clear( );
+			multiplier *= 2;
+		}
+	} catch ( IOException e ) {
+		e.printStackTrace( );
+	} finally {
+		try {
+			channel.close( );
+		} catch ( IOException e ) {
+			// closing anyway
+		}
+	}
+    }
+
+    /**
+     * Fills a buffer from a channel, however many reads it takes.
+     *
+     * @return false if the channel closed before the first byte.
+     */
+    static boolean readFully( SocketChannel channel, ByteBuffer buffer ) throws IOException {
+	while ( buffer.hasRemaining( ) ) {
+		if ( channel.read( buffer ) < 0 ) {
+			if ( buffer.position( ) == 0 )
+				return false;
+			throw new EOFException( "connection closed inside a frame" );
+		}
+	}
+	return true;
+    }
 }
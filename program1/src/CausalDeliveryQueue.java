@@ -0,0 +1,194 @@
+/**
+ * Holds back messages until the vector clock algorithm allows them to be
+ * delivered, in causal order.
+ *
+ * Pending messages are indexed by sender, in a priority queue ordered by
+ * the sender's own clock entry, so only the head of every sender's queue
+ * can ever be deliverable. A head that cannot be delivered is parked on
+ * the one clock entry that blocks it, and it is checked again only when a
+ * delivery advances that entry. Delivering a message therefore touches
+ * the heads it unblocks instead of rescanning everything that is pending.
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.util.*; // for PriorityQueue, ArrayDeque, List
+
+public class CausalDeliveryQueue {
+    private int[] vClock;                       // delivered messages per sender
+    private PriorityQueue<MessageData>[] pending; // held back messages per sender
+    private List<Integer>[] waiting;            // senders whose head waits on entry j
+    private int[] waitingOn;                    // the entry a sender's head waits on, or -1
+    private ArrayDeque<Integer> toCheck;        // senders whose head may be deliverable
+    private ArrayDeque<MessageData> deliverable; // messages ready to be delivered, in order
+    private int size;                           // number of held back messages
+    private int maxSize;                        // the most messages ever held back
+    private long delivered;                     // number of messages delivered
+    private long discarded;                     // duplicates and malformed messages
+
+    /**
+     * @param newVClock the vector clock of this node. Deliveries advance it,
+     *                  and the node advances its own entry when it sends.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public CausalDeliveryQueue(int[] newVClock){
+        vClock = newVClock;
+        pending = new PriorityQueue[vClock.length];
+        waiting = new List[vClock.length];
+        waitingOn = new int[vClock.length];
+        for(int i = 0; i < vClock.length; i++){
+            int sender = i;
+            pending[i] = new PriorityQueue<MessageData>(
+                    Comparator.comparingInt(m -> m.vClock[sender]));
+            waiting[i] = new ArrayList<Integer>();
+            waitingOn[i] = -1;
+        }
+        toCheck = new ArrayDeque<Integer>();
+        deliverable = new ArrayDeque<MessageData>();
+        size = 0;
+        maxSize = 0;
+        delivered = 0;
+        discarded = 0;
+    }
+
+    /**
+     * Adds a received message and moves every message it makes deliverable
+     * to the deliverable queue.
+     */
+    public void offer(MessageData message){
+        int sender = message.senderRank;
+        if(sender < 0 || sender >= vClock.length || message.vClock.length != vClock.length){
+            discarded++;
+            return;
+        }
+
+        pending[sender].add(message);
+        size++;
+        maxSize = Math.max(maxSize, size);
+
+        // only a new head can change anything
+        if(pending[sender].peek() == message){
+            toCheck.add(sender);
+            drain();
+        }
+    }
+
+    /**
+     * @return the next message to deliver, or null if none is deliverable.
+     */
+    public MessageData poll(){
+        return deliverable.poll();
+    }
+
+    /**
+     * Checks heads until no more messages become deliverable.
+     */
+    private void drain(){
+        Integer sender;
+        while((sender = toCheck.poll()) != null){
+            check(sender);
+        }
+    }
+
+    /**
+     * Delivers the head of a sender's queue if it is deliverable, and
+     * otherwise parks it on the clock entry that blocks it.
+     */
+    private void check(int sender){
+        waitingOn[sender] = -1;
+        MessageData head;
+        while((head = pending[sender].peek()) != null){
+            int blocker = blockingEntry(head);
+
+            if(blocker == sender && head.vClock[sender] <= vClock[sender]){
+                // already delivered; a duplicate
+                pending[sender].poll();
+                size--;
+                discarded++;
+                continue;
+            }
+
+            if(blocker == sender){
+                // an earlier message of the same sender is missing. It
+                // becomes the new head when it arrives.
+                return;
+            }
+
+            if(blocker >= 0){
+                waitingOn[sender] = blocker;
+                waiting[blocker].add(sender);
+                return;
+            }
+
+            // deliver it, then recheck this sender's next head and
+            // every head that waited on this sender's entry
+            pending[sender].poll();
+            size--;
+            vClock[sender]++;
+            delivered++;
+            deliverable.add(head);
+
+            for(int other : waiting[sender]){
+                if(waitingOn[other] == sender){
+                    waitingOn[other] = -1;
+                    toCheck.add(other);
+                }
+            }
+            waiting[sender].clear();
+        }
+    }
+
+    /**
+     * Uses the causal ordering algorithm to find why a message cannot be
+     * delivered yet.
+     *
+     * @return the index of the first clock entry that blocks the message,
+     *         or -1 if it can be delivered.
+     */
+    private int blockingEntry(MessageData message){
+        int sender = message.senderRank;
+        for(int i = 0; i < vClock.length; i++){
+            if(i == sender){
+                if(message.vClock[i] != vClock[i] + 1) return i;
+            }else if(message.vClock[i] > vClock[i]){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of messages held back.
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @return the number of messages held back from a sender.
+     */
+    public int size(int sender){
+        return pending[sender].size();
+    }
+
+    /**
+     * @return the most messages that were ever held back at once.
+     */
+    public int maxSize(){
+        return maxSize;
+    }
+
+    /**
+     * @return a one line summary of the queue for logs.
+     */
+    public String metrics(){
+        StringBuilder perSender = new StringBuilder();
+        for(int i = 0; i < pending.length; i++){
+            perSender.append(i == 0 ? "" : ",").append(pending[i].size());
+        }
+        return "pending=" + size + " maxPending=" + maxSize + " delivered=" + delivered +
+               " discarded=" + discarded + " perSender=[" + perSender + "]";
+    }
+
+}
@@ -2,171 +2,299 @@
  *  A distributed peer to peer chat application that receives and multicasts messages.
  * Implements vector clock for causal ordering.
  *
+ * By default every node links to every other node and sends each message
+ * to all of them. With -Dchat.topology=tree the nodes only link to their
+ * neighbors in a k-ary spanning tree (-Dchat.fanout, 2 by default), and
+ * every node relays what it receives to its other neighbors, so a node
+ * keeps at most fanout + 1 links and sends each message at most
+ * fanout + 1 times however big the group is. The vector clocks still
+ * decide when a relayed message is delivered. A node that leaves cuts the
+ * tree, so the nodes behind it stop hearing from the rest, but every
+ * other node keeps chatting: a link whose peer left is reported and
+ * no longer used.
+ *
+ * With -Dchat.log.dir, every message this node sends or delivers is kept
+ * in a ChatLog there, with its sender and vector clock, and the last
+ * -Dchat.log.replay messages (100 by default) are shown again at start.
+ *
  * @author 	Youssef Beltagy
  * @version 4/20/2020
  */
 
-import java.net.*;  // ServerSocket, Socket
-import java.io.*;   // InputStream, ObjectInputStream, ObjectOutputStream
-import java.util.*; // Vector
+import java.net.*;  // InetAddress
+import java.io.*;   // BufferedReader, IOException
+import java.util.concurrent.*; // LinkedTransferQueue, ExecutorService
 
 public class Chat {
 
     // Each element i of the follwoing arrays represent a chat member[i]
-    private Socket[] sockets = null;             // connection to i
-    private InputStream[] indata = null;         // used to check data from i
-    private ObjectInputStream[] inputs = null;   // a message from i
-	private ObjectOutputStream[] outputs = null; // a message to ij
+    private PeerLink[] links = null;             // connection to i, if i is a neighbor still here
+	private int[] neighbors = null;              // the ranks this node has links to
 	private int[] vClock = null;				 // vector clock for causal ordering
-	private Vector<MessageData> messages = null; // Waiting messages
+	private CausalDeliveryQueue held = null;     // Waiting messages
+	private LinkedTransferQueue<Event> inbox = null; // input for the delivery thread
 
     /**
      * Is the main body of the Chat application. This constructor establishes
      * a socket to each remote chat member, broadcasts a local user's message
      * to all the remote chat members, and receive a message from each of them.
+     * Blocking readers feed a single delivery thread (the caller), which
+     * owns the vector clock.
      *
      * @param port  IP port used to connect to a remote node as well as to
      *              accept a connection from a remote node.
      * @param rank  this local node's rank (one of 0 through to #members - 1)
-     * @param hosts a list of all computing nodes that participate in chatting
+     * @param hosts a list of all computing nodes that participate in chatting,
+     *              each as host or host:port
      */
     public Chat( int port, int rank, String[] hosts ) throws IOException {
 	// print out my port, rank and local hostname
-	System.out.println( "port = " + port + ", rank = " + rank +
+	System.out.println( "port = " + HostPort.portOf( hosts[rank], port ) + ", rank = " + rank +
 			    ", localhost = " + hosts[rank] );
 
-	// create sockets, inputs, outputs, vector clock, and vector of messages
-	sockets = new Socket[hosts.length];
-	indata = new InputStream[hosts.length];
-	inputs = new ObjectInputStream[hosts.length];
-	outputs = new ObjectOutputStream[hosts.length];
+	// create vector clock
 	vClock = new int[hosts.length];
-	messages = new Vector<MessageData>();
-
 
+	// establish a complete network or a spanning tree, every link at
+	// once. The hello on every link carries the ranks, which also agree
+	// on the wire format.
+	boolean relay = "tree".equals( System.getProperty( "chat.topology" ) );
+	neighbors = relay
+	    ? MeshBootstrap.tree( rank, hosts.length, Integer.getInteger( "chat.fanout", 2 ) )
+	    : MeshBootstrap.fullMesh( rank, hosts.length );
+	MeshBootstrap mesh = new MeshBootstrap( port, rank, hosts );
+	links = mesh.connect( neighbors );
+	System.out.println( "mesh ready in " + mesh.readyMillis( ) + " ms" );
 
-	// establish a complete network
-	ServerSocket server = new ServerSocket( port );
-	for ( int i = hosts.length - 1; i >= 0; i-- ) {
+	for ( int j = 0; j < hosts.length; j++ ){
+		vClock[j] = 0; // initialize vector clock to zeros
+	}
+	held = new CausalDeliveryQueue( vClock );
 
-	    if ( i > rank ) {
-		// accept a connection from others with a higher rank
-		Socket socket = server.accept( );
-		String src_host = socket.getInetAddress( ).getHostName( );
+	// how often to print the hold-back queue metrics, 0 to never print
+	long metricsInterval = Long.getLong( "chat.metrics.ms", 0 );
+	long lastMetrics = System.currentTimeMillis( );
+		   
 
-		// find this source host's rank
-		for ( int j = 0; j < hosts.length; j++ )
-		    if ( src_host.startsWith( hosts[j] ) ) {
-			// j is this source host's rank
-			System.out.println( "accepted from " + src_host );
+	// encodes every outgoing message once for all the links with full clocks
+	MessageCodec encoder = new MessageCodec( );
 
-			// store this source host j's connection, input stream
-			// and object intput/output streams.
-			sockets[j] = socket;
-			indata[j]= socket.getInputStream( );
-			inputs[j] = 
-			    new ObjectInputStream( indata[j] );
-			outputs[j] = 
-			    new ObjectOutputStream( socket.getOutputStream( ));
-		    }
-	    }
-	    if ( i < rank ) {
-		// establish a connection to others with a lower rank
-		sockets[i] = new Socket( hosts[i], port );
-		System.out.println( "connected to " + hosts[i] );
-
-		// store this destination host j's connection, input stream
-		// and object intput/output streams.
-		outputs[i] 
-		    = new ObjectOutputStream( sockets[i].getOutputStream( ) );
-		indata[i] = sockets[i].getInputStream( );
-		inputs[i] 
-		    = new ObjectInputStream( indata[i] );
-	    }
+	// the history of earlier runs, and of this one from now on
+	ChatLog history = ChatLog.fromProperties( );
+	MessageCodec logEncoder = new MessageCodec( );
+	if ( history != null ) {
+	    showHistory( history, Long.getLong( "chat.log.replay", 100 ) );
 	}
 
-	for ( int j = 0; j < hosts.length; j++ ){
-		vClock[j] = 0; // initialize vector clock to zeros
+	// every peer gets a reader that blocks on its link, and the keyboard
+	// gets its own reader. They all feed this thread through the inbox.
+	inbox = new LinkedTransferQueue<Event>( );
+	ExecutorService readers = VirtualThreads.newPerTaskExecutor( );
+	for ( int peer : neighbors ) {
+	    readers.execute( ( ) -> readPeer( rank, peer ) );
 	}
-		   
-
-	// create a keyboard stream
-	BufferedReader keyboard
-	    = new BufferedReader( new InputStreamReader( System.in ) );
+	Thread keyboard = new Thread( this::readKeyboard, "keyboard" );
+	keyboard.setDaemon( true );
+	keyboard.start( );
 
 	// now goes into a chat
 	while ( true ) {
-	    // read a message from keyboard and broadcast it to all the others.
-	    if ( keyboard.ready( ) ) {
-		// since keyboard is ready, read one line.
-			String message = keyboard.readLine( );
-			if ( message == null ) {
-				// keyboard was closed by "^d"
-				break; // terminate the program
-			}
-			
-			vClock[rank] = vClock[rank] + 1;
-
-			// broadcast a message to each of the chat members.
-			for ( int i = 0; i < hosts.length; i++ ){
-				if ( i != rank ) {
-					// of course I should not send a message to myself
-		
-					MessageData tempMessage = new MessageData(hosts[rank]+ ": " + message, vClock.clone(), rank);
-					outputs[i].writeObject(tempMessage);
-					outputs[i].flush(); // make sure the message was sent
-				}
+	    Event event;
+	    try {
+		event = ( metricsInterval > 0 )
+		    ? inbox.poll( metricsInterval, TimeUnit.MILLISECONDS )
+		    : inbox.take( );
+	    } catch ( InterruptedException e ) {
+		break;
+	    }
+
+	    if ( event != null && event.message != null ) {
+		// pass it on to the rest of the tree. In a full mesh every
+		// other node got it from the sender.
+		if ( relay ) {
+		    for ( int peer : neighbors ) {
+			if ( peer != event.from ) {
+			    send( peer, event.message, encoder );
 			}
+		    }
+		}
 
-	    }
+		// hold the message back until the vector clock algorithm allows it
+		held.offer( event.message );
+
+		// print every message the vector clock algorithm made
+		// deliverable, in causal order
+		MessageData deliverable;
+		while ( ( deliverable = held.poll( ) ) != null ) {
+		    System.out.println(deliverable.message);
+		    if ( history != null ) {
+			logEncoder.encode( deliverable );
+			history.append( logEncoder.toByteArray( ), deliverable.senderRank, deliverable.vClock );
+		    }
+		}
+	    } else if ( event != null && event.line != null ) {
+		// broadcast the local user's message to all the others.
+		vClock[rank] = vClock[rank] + 1;
+
+		// snapshot the clock once for everybody
+		MessageData tempMessage = new MessageData(hosts[rank]+ ": " + event.line, vClock.clone(), rank);
+		if ( history != null ) {
+		    logEncoder.encode( tempMessage );
+		    history.append( logEncoder.toByteArray( ), rank, tempMessage.vClock );
+		}
 
-	    // read a message from each of the chat members
-	    for ( int i = 0; i < hosts.length; i++ ) {
-		// to intentionally create a misordered message deliveray, 
-		// let's slow down the chat member #2.
-		try {
-		    if ( rank == 2 )
-			Thread.currentThread( ).sleep( 5000 ); // sleep 5 sec.
-		} catch ( InterruptedException e ) {}
-
-		// check if chat member #i has something
-		if ( i != rank && indata[i].available( ) > 0 ) {
-		    // read a message from chat member #i and add it the the vector of messages
-		    try {
-
-				MessageData inputMessage = ( MessageData) inputs[i].readObject( );
-				messages.add(inputMessage);
-			
-		    } catch ( ClassNotFoundException e ) {}
+		for ( int peer : neighbors ){
+		    // of course I should not send a message to myself
+		    send( peer, tempMessage, encoder );
 		}
+	    } else if ( event != null && event.from >= 0 ) {
+		// the peer's reader stopped, so the peer is gone
+		if ( links[event.from] != null ) {
+		    System.err.println( hosts[event.from] + " left" );
+		    dropLink( event.from );
 		}
+	    } else if ( event != null ) {
+		// keyboard was closed by "^d"
+		break; // terminate the program
+	    }
 
-		// loop through the message and use compareVectors to find the 
-		// next message to print in the correct order.
-		// Uses the vector clock algorithm
-		boolean loopAgain = true;
-		while(loopAgain){
-			loopAgain = false;
-			
-			// If you couldn't print any message, then the while loop 
-			// will end.
-			for(int k = 0; k < messages.size(); k++){
-
-				// If you could print a message, delete the current message
-				// from the vector of messages, exit the for loop, 
-				// and restart the while loop
-				if(compareVectors(messages.get(k))){
-
-					vClock[messages.get(k).senderRank]++;
-					System.out.println(messages.get(k).message);
-					loopAgain = true;
-					messages.remove(k);
-					break;
-
-				}
-			}
+	    if ( metricsInterval > 0
+		    && System.currentTimeMillis( ) - lastMetrics >= metricsInterval ) {
+		lastMetrics = System.currentTimeMillis( );
+		long batches = 0, sent = 0;
+		for ( int peer : neighbors ) {
+		    if ( links[peer] != null ) {
+			batches += links[peer].batches( );
+			sent += links[peer].messages( );
+		    }
 		}
+		System.err.println( held.metrics( ) + " sent=" + sent + " batches=" + batches );
+	    }
+	}
+
+	readers.shutdownNow( );
+	for ( int peer : neighbors ) {
+	    if ( links[peer] != null ) {
+		links[peer].close( );
+	    }
+	}
+	if ( history != null ) {
+	    history.close( );
+	}
+    }
 
+    /**
+     * Sends a message to a peer that is still here. A peer whose link
+     * fails is dropped instead of ending the chat.
+     */
+    private void send( int peer, MessageData message, MessageCodec encoder ) {
+	if ( links[peer] == null ) {
+	    return;
+	}
+	try {
+	    links[peer].send( message, encoder );
+	} catch ( IOException e ) {
+	    System.err.println( "lost the link to rank " + peer + ": " + e.getMessage( ) );
+	    dropLink( peer );
+	}
+    }
+
+    /**
+     * Closes the link to a peer and stops sending to or relaying through it.
+     */
+    private void dropLink( int peer ) {
+	links[peer].close( );
+	links[peer] = null;
+    }
+
+    /**
+     * Prints the last messages of the history.
+     *
+     * @param history the history log
+     * @param count   how many messages to print at most
+     */
+    private void showHistory( ChatLog history, long count ) throws IOException {
+	MessageCodec decoder = new MessageCodec( );
+	long end = history.end( );
+	ChatLog.Record record;
+	for ( long at = history.offsetBack( count ); at < end; at = record.next ) {
+	    record = history.read( at );
+	    MessageData message = decoder.decode(
+		new DataInputStream( new ByteArrayInputStream( record.frame ) ) );
+	    System.out.println( "(history) " + message.message );
+	}
+    }
+
+    /**
+     * The body of the reader of one peer. Blocks on the peer's link and
+     * hands every message to the delivery thread until the peer leaves,
+     * and then tells the delivery thread that it left.
+     *
+     * To intentionally create misordered message delivery, a node can
+     * hold back what it reads. -Dchat.delay.rank picks the node,
+     * -Dchat.delay.ms how long every message waits (5000 by default), and
+     * -Dchat.delay.from limits the delay to messages from one peer.
+     *
+     * @param rank this local node's rank
+     * @param peer the rank of the peer to read from
+     */
+    private void readPeer( int rank, int peer ) {
+	boolean delayed = Integer.getInteger( "chat.delay.rank", -1 ) == rank
+	    && Integer.getInteger( "chat.delay.from", peer ) == peer;
+	long delay = Long.getLong( "chat.delay.ms", 5000 );
+	PeerLink link = links[peer]; // the delivery thread forgets it once the peer left
+
+	try {
+	    while ( true ) {
+		MessageData message = link.receive( );
+		if ( delayed ) {
+		    Thread.sleep( delay );
+		}
+		inbox.add( new Event( null, message, peer ) );
+	    }
+	} catch ( IOException | InterruptedException e ) {
+	    // the peer left or the chat is over
+	} catch ( RuntimeException e ) {
+	    // a bug or a frame the codec did not catch; the link is unusable
+	    System.err.println( "reader of rank " + peer + " failed:" );
+	    e.printStackTrace( );
+	} finally {
+	    inbox.add( new Event( null, null, peer ) );
+	}
+    }
+
+    /**
+     * The body of the keyboard reader. Hands every line to the delivery
+     * thread, and an empty event once the keyboard is closed.
+     */
+    private void readKeyboard( ) {
+	BufferedReader keyboard
+	    = new BufferedReader( new InputStreamReader( System.in ) );
+	try {
+	    String line;
+	    while ( ( line = keyboard.readLine( ) ) != null ) {
+		inbox.add( new Event( line, null, -1 ) );
+	    }
+	} catch ( IOException e ) {
+	    e.printStackTrace( );
+	}
+	inbox.add( new Event( null, null, -1 ) );
+    }
+
+    /**
+     * Something for the delivery thread to handle: a line typed by the
+     * local user, a message from a peer, or neither once a peer left (from
+     * is its rank) or the keyboard closed (from is -1).
+     */
+    private static class Event {
+	String line;          // a line from the keyboard, or null
+	MessageData message;  // a message from a peer, or null
+	int from;             // the rank of the peer it came from or that left, or -1
+
+	Event( String newLine, MessageData newMessage, int newFrom ) {
+	    line = newLine;
+	    message = newMessage;
+	    from = newFrom;
 	}
     }
 
@@ -177,6 +305,8 @@ public class Chat {
      * @param args receives <port> <ip1> <ip2> ... where port is an IP port
      *             to establish a TCP connection and ip1, ip2, .... are a
      *             list of all computing nodes that participate in a chat.
+     *             A node given as ip:port listens on its own port, and
+     *             -Dchat.rank picks this node's rank instead of its hostname.
      */
     public static void main( String[] args ) {
 
@@ -209,14 +339,19 @@ public class Chat {
 	}
 
 	// store a list of computing nodes in hosts[] and check my rank
-	int rank = -1;
+	int rank = Integer.getInteger( "chat.rank", -1 );
 	String[] hosts = new String[args.length - 1];
 	for ( int i = 0; i < args.length - 1; i++ ) {
 	    hosts[i] = args[i + 1];
-	    if ( localhost.startsWith( hosts[i] ) ) 
+	    if ( System.getProperty( "chat.rank" ) == null
+		 && localhost.startsWith( HostPort.hostOf( hosts[i] ) ) ) 
 		// found myself in the i-th member of hosts
 		rank = i;
 	}
+	if ( rank < 0 || rank >= hosts.length ) {
+	    System.err.println( localhost + " is not one of the hosts" );
+	    System.exit( -1 );
+	}
 
 	// now start the Chat application
 	try {
@@ -226,30 +361,5 @@ public class Chat {
 	    System.exit( -1 );
 	}
 	}
-	
-	/*
-	* Uses the causal ordering algorithm to determine if the message should be printed
-	*
-	* @param messageData The message that is to be printed
-	* @return true if the message should be printed
-	*/
-	public boolean compareVectors(MessageData messageData){
-		if(vClock.length != (messageData.vClock).length){
-			return false;
-		}
-
-		for(int i = 0; i < vClock.length; i++){
-
-			if(i != messageData.senderRank){
-				//if messageData.vClock[i] > vClock[i] return false
-				if( !(messageData.vClock[i] <= vClock[i]) ) return false; 
-			}else if(i == messageData.senderRank){ // the second if is not necessary, but just for clarity.
-				if(messageData.vClock[i] != vClock[i] + 1) return false;
-			}
-			
-		}
-
-		return true;
-	}
 
 }
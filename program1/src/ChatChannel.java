@@ -0,0 +1,356 @@
+/**
+ * A non-blocking connection between the NIO chat server and a client.
+ * Speaks the same framings as ChatConnection (see FrameCodec), but keeps
+ * its own read and write buffers so partial reads and writes never block
+ * the event loop.
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.nio.*;           // for ByteBuffer
+import java.nio.channels.*;  // for SocketChannel, SelectionKey
+import java.io.*;            // for IOException, DataInputStream
+import java.util.*;          // for Arrays
+
+public class ChatChannel {
+    private static final int GATHER = 64;           // most frames sent by one write
+
+    private SocketChannel channel;   // a non-blocking channel to a chat client
+    private SelectionKey key;        // the key registering channel with the selector
+    private FrameParser parser;      // parses the frames from the client
+    private ByteBuffer current;      // the frame being sent, null if none was started
+    private OutboundQueue queue;     // frames waiting behind current
+    private ChatLog replayLog;       // history to send before current, or null
+    private long replayFrom;         // the next history byte to send
+    private long replayTo;           // where the history to send ends
+    private ByteBuffer replayRecord; // a history record converted for a legacy client, or null
+    private ByteBuffer[] gather;     // scratch array for gathering writes
+    private byte[] prefix;           // "name: " in UTF-8, put in front of the client's messages
+    private boolean portablePrefix;  // whether prefix is the same in both framings
+    public String name;              // The name of the client, null until received
+    public String room;              // The room the client is in
+    public boolean valid;            // Whether this connection is valid or not
+
+    /**
+     * Initializes a connection given an accepted, non-blocking channel.
+     *
+     * @param newChannel the channel of the connection
+     * @param newKey     the key of newChannel inside the event loop's selector,
+     *                   or null to register it later with register()
+     * @param queues     the settings of the outbound queue
+     */
+    public ChatChannel(SocketChannel newChannel, SelectionKey newKey, OutboundQueue.Settings queues){
+        channel = newChannel;
+        key = newKey;
+        parser = FrameParser.detecting();
+        current = null;
+        replayRecord = null;
+        queue = queues.newQueue();
+        gather = new ByteBuffer[GATHER];
+        prefix = null;
+        portablePrefix = false;
+        name = null;
+        room = null;
+        valid = true;
+    }
+
+    /**
+     * Registers the channel with an event loop's selector, so that loop
+     * owns the connection from now on.
+     *
+     * @return false if the connection is no longer valid.
+     */
+    public boolean register(Selector selector){
+        try{
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+            interest();
+        }catch(IOException | CancelledKeyException e){
+            valid = false;
+        }
+        return valid;
+    }
+
+    /**
+     * Takes the channel out of its selector without closing it, so another
+     * event loop can register it.
+     */
+    public void detach(){
+        if(key != null){
+            key.cancel();
+            key = null;
+        }
+    }
+
+    /**
+     * Reads whatever the channel has available without blocking.
+     *
+     * @return false if the client closed the connection or the read failed.
+     */
+    public boolean read(){
+        try{
+            if(!parser.fill(channel)){
+                valid = false;
+            }
+        }catch(IOException e){
+            valid = false;
+        }
+        return valid;
+    }
+
+    /**
+     * Parses the next complete frame out of what was read, and answers the
+     * client's hello if it sent one. Nothing is decoded, so the caller only
+     * pays for the text of the frames it needs as text.
+     *
+     * @return the next frame, valid until this method is called again or the
+     *         connection is closed, or null if no complete frame was
+     *         received yet.
+     */
+    public FrameParser.Frame nextFrame(){
+        if(!valid){
+            return null; // closed, maybe by a broadcast of its own message
+        }
+        try{
+            FrameParser.Frame frame = parser.next();
+            if(parser.helloReceived()){
+                queue.setFramed(true);
+                writeFrame(ByteBuffer.wrap(FrameCodec.hello()));
+            }
+            return frame;
+        }catch(IOException e){
+            // a frame longer than the framed protocol allows
+            valid = false;
+            return null;
+        }
+    }
+
+    /**
+     * Names the client, and encodes the prefix of its messages once.
+     */
+    public void setName(String newName){
+        name = newName;
+        prefix = FrameCodec.payload(name + ": ", true);
+        portablePrefix = FrameCodec.isPortable(prefix, 0, prefix.length);
+    }
+
+    /**
+     * @return "name: " in UTF-8, without a header.
+     */
+    public byte[] prefix(){
+        return prefix;
+    }
+
+    /**
+     * @return whether the prefix is the same bytes in both framings.
+     */
+    public boolean hasPortablePrefix(){
+        return portablePrefix;
+    }
+
+    /**
+     * @return whether the client speaks the framed protocol.
+     */
+    public boolean isFramed(){
+        return parser.isFramed();
+    }
+
+    /**
+     * Sends an encoded frame without blocking. The frame is only read, so the
+     * same buffer can be handed to every connection. If nothing is pending,
+     * the frame is written straight from the shared buffer and only the part
+     * the socket does not take is copied. Otherwise a copy waits in the
+     * bounded outbound queue, and a full queue applies the slow-consumer policy.
+     *
+     * @param frame an encoded frame from FrameCodec.encode(); its position is
+     *              back where it was when this returns
+     * @return a boolean that represents whether the writing operation
+     *          was successful or not.
+     */
+    public boolean writeFrame(ByteBuffer frame){
+        if(!valid){
+            return false;
+        }
+
+        int start = frame.position();
+        try{
+            if(replayLog != null || current != null || queue.peek() != null){
+                // the socket was full last time; flush() sends it on OP_WRITE.
+                if(!queue.offer(copy(frame))){
+                    valid = false;
+                }
+                return valid;
+            }
+
+            channel.write(frame);
+            if(frame.hasRemaining()){
+                current = copy(frame);
+                interest();
+            }
+        }catch(IOException | CancelledKeyException e){
+            valid = false;
+        }finally{
+            frame.position(start);
+        }
+        return valid;
+    }
+
+    /**
+     * Writes pending frames with one gathering write and updates the interest
+     * set so that the selector only wakes up for writes while frames are pending.
+     *
+     * @return false if the connection is no longer valid.
+     */
+    public boolean flush(){
+        try{
+            if(replayLog != null && current != null){
+                // a frame started before the replay, like the answer to the hello
+                channel.write(current);
+                if(current.hasRemaining()){
+                    interest();
+                    return valid;
+                }
+                current = null;
+            }
+            if(replayLog != null){
+                if(isFramed()){
+                    // the history goes straight from the log files to the socket
+                    replayFrom = replayLog.transferTo(replayFrom, replayTo, channel);
+                }else{
+                    replayLegacy();
+                }
+                if(replayFrom < replayTo || replayRecord != null){
+                    interest();
+                    return valid;
+                }
+                replayLog = null;
+            }
+
+            int count = 0;
+            if(current != null){
+                gather[count++] = current;
+            }
+            count = queue.peek(gather, count);
+            channel.write(gather, 0, count);
+            Arrays.fill(gather, 0, count, null);
+
+            // forget what was sent; a queued frame that was partly sent becomes current
+            if(current != null && !current.hasRemaining()){
+                current = null;
+            }
+            if(current == null){
+                ByteBuffer head;
+                while((head = queue.peek()) != null && head.position() > 0){
+                    queue.poll();
+                    if(head.hasRemaining()){
+                        current = head;
+                        break;
+                    }
+                }
+            }
+            interest();
+        }catch(IOException | CancelledKeyException e){
+            valid = false;
+        }
+        return valid;
+    }
+
+    /**
+     * Sends the history to a legacy client one record at a time, converting
+     * each to a writeUTF frame, until the socket is full. Records too long
+     * for writeUTF are skipped.
+     */
+    private void replayLegacy() throws IOException {
+        while(true){
+            if(replayRecord == null){
+                if(replayFrom >= replayTo){
+                    return;
+                }
+                ChatLog.Record record = replayLog.read(replayFrom);
+                replayFrom = record.next;
+                byte[] legacy = FrameCodec.framedToLegacy(record.frame);
+                if(legacy == null){
+                    continue;
+                }
+                replayRecord = ByteBuffer.wrap(legacy);
+            }
+            channel.write(replayRecord);
+            if(replayRecord.hasRemaining()){
+                return;
+            }
+            replayRecord = null;
+        }
+    }
+
+    /**
+     * Sends part of a history log to the client before every frame written
+     * after this call. The history is kept in framed frames, so it goes
+     * straight from the log files to a framed client, without copying it
+     * through the JVM, and is converted for a legacy one. Either way it
+     * bypasses the outbound queue, so a long history never counts against
+     * its limit. What the socket does not take now is sent on OP_WRITE.
+     *
+     * @param log  the history
+     * @param from the offset of the first record to send
+     * @param to   where to stop, usually log.end()
+     */
+    public void replay(ChatLog log, long from, long to){
+        if(valid && from < to){
+            replayLog = log;
+            replayFrom = from;
+            replayTo = to;
+            flush();
+        }
+    }
+
+    /**
+     * @return the number of frames waiting to be written to the client.
+     */
+    public int queueDepth(){
+        return queue.depth() + (current == null ? 0 : 1);
+    }
+
+    /**
+     * @return the queue of frames waiting to be written to the client.
+     */
+    public OutboundQueue getQueue(){
+        return queue;
+    }
+
+    /**
+     * Asks the selector for write readiness only while frames are pending.
+     */
+    private void interest(){
+        if(replayLog != null || current != null || queue.peek() != null){
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }else{
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Closes the channel and removes it from its selector.
+     */
+    public void close(){
+        valid = false;
+        queue.close();
+        parser.release(); // only this loop's thread reads, so the buffer is free
+        detach();
+        try{
+            channel.close();
+        }catch(IOException e){
+            // already closed
+        }
+    }
+
+    /**
+     * @return a private heap copy of the remaining bytes of buffer.
+     */
+    private static ByteBuffer copy(ByteBuffer buffer){
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer);
+        copy.flip();
+        return copy;
+    }
+
+}
@@ -1,54 +1,169 @@
 /**
  * A chat client for the server-client chat application.
- * 
+ *
  * Forwards console input to server and prints server messages to the console.
- * 
+ *
+ * Speaks the framed protocol (see FrameCodec) unless started with
+ * -Dchat.protocol=legacy, which talks writeUTF to servers that predate it.
+ *
+ * Can also be embedded: every ChatClient reads from the server on its own
+ * (virtual, where the JVM has them) thread and hands what arrives to a
+ * Listener, while send() writes from the caller's thread. Nothing polls,
+ * so a single JVM can host thousands of clients.
+ *
  */
 
 import java.net.*;
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 public class ChatClient {
+	// the reader threads of every client in this JVM
+	private static final ExecutorService readers = VirtualThreads.newPerTaskExecutor();
+
 	private Socket socket;
 	private InputStream rawIn;
 	private DataInputStream in;
-	private DataOutputStream out;
-	private BufferedReader stdin;
+	private OutputStream out;
+	private boolean framed;        // whether the framed protocol is spoken
+	private FrameParser parser;    // parses the server's frames
+	private Listener listener;     // told about every message and the end
+	private volatile boolean closed; // whether close() was called
 
-	public ChatClient(String name, String server, int port) {
+	/**
+	 * Receives what a ChatClient reads, on the client's reader thread.
+	 */
+	public interface Listener {
+		/**
+		 * Called with every message from the server. The frame is only
+		 * valid during the call, and its toString() decodes the text.
+		 */
+		void message(FrameParser.Frame frame);
 
-		try {
+		/**
+		 * Called once when the connection ends.
+		 *
+		 * @param cause why it ended, or null if the server closed it or
+		 *              close() was called
+		 */
+		default void closed(IOException cause) {
+		}
+	}
 
-			socket = new Socket(server, port);
+	/**
+	 * Connects to a server, joins as name and starts reading.
+	 *
+	 * @param name     the name the other clients see
+	 * @param server   the server's host
+	 * @param port     the server's port
+	 * @param newListener told about every message from the server
+	 */
+	public ChatClient(String name, String server, int port, Listener newListener) throws IOException {
+		listener = newListener;
+		socket = new Socket(server, port);
+		try {
+			socket.setTcpNoDelay(true);
 			rawIn = socket.getInputStream();
 
 			in = new DataInputStream(rawIn);
-			out = new DataOutputStream(socket.getOutputStream());
-			stdin = new BufferedReader(new InputStreamReader(System.in));
-
-			out.writeUTF(name);
-			while (true) {
-				
-				// forward user input to server
-				if (stdin.ready()) {
-					String str = stdin.readLine();
-
-					if (str == null)
-						break;
-					out.writeUTF(str);
-				}
+			out = new BufferedOutputStream(socket.getOutputStream());
 
-				// Print Messages from the server
-				if (rawIn.available() > 0) {
-					String str = in.readUTF();
-					System.out.println(str);
-				}
+			framed = !"legacy".equals(System.getProperty("chat.protocol", "framed"));
+			if (framed)
+				hello();
+			parser = new FrameParser(framed);
+
+			send(name);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		readers.execute(this::read);
+	}
+
+	/**
+	 * The body of the reader thread. Blocks until the server sends
+	 * something and hands over every complete message.
+	 */
+	private void read() {
+		IOException cause = null;
+		try {
+			while (parser.fill(rawIn)) {
+				FrameParser.Frame frame;
+				while ((frame = parser.next()) != null)
+					listener.message(frame);
 			}
-			
+		} catch (IOException e) {
+			if (!closed)
+				cause = e;
+		} finally {
+			closed = true;
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+			parser.release();
+			listener.closed(cause);
+		}
+	}
+
+	/**
+	 * Asks the server for the framed protocol and waits for its answer. A
+	 * server that only speaks writeUTF never answers.
+	 */
+	private void hello() throws IOException {
+		out.write(FrameCodec.hello());
+		out.flush();
 
+		int timeout = Integer.getInteger("chat.hello.timeout.ms", 5000);
+		socket.setSoTimeout(timeout);
+		byte[] answer = new byte[3];
+		try {
+			in.readFully(answer);
+		} catch (SocketTimeoutException e) {
+			throw new IOException("the server did not answer the framed hello in " +
+					timeout + " ms; try -Dchat.protocol=legacy");
+		}
+		socket.setSoTimeout(0);
+		if (!Arrays.equals(answer, FrameCodec.hello()))
+			throw new StreamCorruptedException("unexpected answer to the framed hello");
+	}
+
+	/**
+	 * Sends a message in the spoken framing. Safe to call from any thread.
+	 *
+	 * @return false if the message is too long for the framing and was not sent.
+	 */
+	public boolean send(String str) throws IOException {
+		byte[] frame = FrameCodec.toBytes(str, framed);
+		if (frame == null)
+			return false;
+		synchronized (out) {
+			out.write(frame);
+			out.flush();
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether the connection is still up.
+	 */
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * Closes the connection. The reader thread ends and the listener is
+	 * told with a null cause.
+	 */
+	public void close() {
+		closed = true;
+		try {
 			socket.close();
-		} catch (Exception e) {
-			e.printStackTrace();
+		} catch (IOException e) {
+			// closing anyway
 		}
 	}
 
@@ -61,6 +176,31 @@ public class ChatClient {
 
 		int port = Integer.parseInt(args[2]);
 
-		new ChatClient(args[0], args[1], port);
+		try {
+			// Print Messages from the server, and leave when it goes away
+			ChatClient client = new ChatClient(args[0], args[1], port, new Listener() {
+				public void message(FrameParser.Frame frame) {
+					System.out.println(frame); // decoded only here
+				}
+
+				public void closed(IOException cause) {
+					if (cause != null)
+						cause.printStackTrace();
+					System.exit(0);
+				}
+			});
+
+			// forward user input to server, blocking until a line is typed
+			BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+			String str;
+			while ((str = stdin.readLine()) != null) {
+				if (!client.send(str))
+					System.err.println("message too long, not sent");
+			}
+
+			client.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
 	}
 }
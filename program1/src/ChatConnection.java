@@ -2,46 +2,94 @@
  * A connection between a server and a client
  * chating program.
  *
+ * Speaks the framing the client picks when it connects (see FrameCodec):
+ * writeUTF frames, or the framed protocol with four byte lengths.
+ *
+ * Frames for the client wait in an OutboundQueue that a writer task drains
+ * with blocking writes, on a virtual thread where the JVM has them and on
+ * a platform thread otherwise. Draining with non-blocking writes and no
+ * thread per client is only available in ChatServer's nio mode (see
+ * ChatChannel).
+ *
  * @author  Youssef Beltagy
  * @version 4/20/2020
  */
 
 import java.net.*;          // for Socket
+import java.nio.*;          // for ByteBuffer
+import java.nio.channels.*; // for Channels, WritableByteChannel
 import java.io.*;           // for IOException
+import java.util.concurrent.*; // for Executor
 
 public class ChatConnection {
+    // runs the writers of the connections that are not given an executor
+    private static final ExecutorService writerThreads = VirtualThreads.newPerTaskExecutor();
+
     private Socket socket;           // a socket connection to a chat client
     private InputStream rawIn;       // an input stream from the client
-    private DataInputStream in;      // a filtered input stream from the client
+    private FrameParser parser;      // parses the frames from the client
     private DataOutputStream out;    // a filtered output stream to the client
+    private OutboundQueue queue;     // frames waiting for the writer thread
+    private volatile ChatLog replayLog; // history to send before the queue, or null
+    private long replayFrom;         // where the history to send starts
+    private long replayTo;           // where the history to send ends
+    private byte[] prefix;           // "name: " in the client's framing, or null if too long
     public String name;              // The name of the client
-    public boolean valid;            // Whether this connection is valid or not
+    public volatile boolean valid;   // Whether this connection is valid or not
 
      /**
      * Initializes a connection given a socket.
      * 
      * @param newSocket the socket of the connection
+     * @param queues    the settings of the outbound queue
+     */
+    public ChatConnection(Socket newSocket, OutboundQueue.Settings queues){
+        this(newSocket, null, queues);
+    }
+
+     /**
+     * Initializes a connection given a socket, running its writer on the
+     * given executor.
+     * 
+     * @param newSocket the socket of the connection
+     * @param writers   runs the writer task, or null for a shared executor
+     *                  of virtual threads (platform threads before Java 21)
+     * @param queues    the settings of the outbound queue
      */
-    public ChatConnection(Socket newSocket){
+    public ChatConnection(Socket newSocket, Executor writers, OutboundQueue.Settings queues){
         if(newSocket != null){
             try{
             
                 socket = newSocket;
                 rawIn = socket.getInputStream();
-                in = new DataInputStream(rawIn);
                 out = new DataOutputStream(socket.getOutputStream());
                 valid = true;
-                name = in.readUTF();
+                parser = FrameParser.detecting();
+                FrameParser.Frame first = nextFrame();
+                if(first == null){
+                    throw new EOFException("the client left before sending its name");
+                }
+                name = first.toString();
+                prefix = FrameCodec.payload(name + ": ", isFramed());
+
+                // a writer thread drains the queue, so a client that stops
+                // reading only blocks its own writer and never the server.
+                queue = queues.newQueue();
+                queue.setFramed(isFramed());
+                ((writers != null) ? writers : writerThreads).execute(this::drain);
     
             }catch(Exception e ) {
                 e.printStackTrace( );
+                valid = false;
             }
 
         }else{// newSocket is null
             socket = null;
             rawIn = null;
-            in = null;
+            parser = null;
+            prefix = null;
             out = null;
+            queue = null;
             name = null;
             valid = false;
         }
@@ -53,7 +101,7 @@ public class ChatConnection {
      */
     public boolean hasMessage(){
         try{
-            return (rawIn.available() > 0);
+            return parser.hasFrame() || (rawIn.available() > 0);
         }catch(Exception e ) {
             return false;
         }
@@ -66,7 +114,8 @@ public class ChatConnection {
      */
     public String getMessage(){
         try{
-            return in.readUTF();
+            FrameParser.Frame frame = nextFrame();
+            return (frame == null) ? null : frame.toString();
         }catch(Exception e ) {
             return null;
         }
@@ -74,20 +123,183 @@ public class ChatConnection {
     }
 
     /**
-     * Attempts to write to the object output stream.
-     * If fails to write, changes valid to false to signify
+     * Assumes there is a message in the ObjectInputStream. The message is
+     * put behind the client's name by copying its bytes, without decoding it.
+     *
+     * @return reads and returns the message with the client's name, or null
+     *         if the client left.
+     */
+    public FrameCodec.Encoded getNamedMessage(){
+        try{
+            FrameParser.Frame frame = nextFrame();
+            if(frame == null){
+                return null;
+            }
+            return (prefix != null) ? FrameCodec.Encoded.forward(prefix, frame, isFramed())
+                                    : new FrameCodec.Encoded(name + ": " + frame);
+        }catch(Exception e ) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads until the next frame arrives, answering the client's hello if
+     * it sent one.
+     *
+     * @return the next frame, or null if the client left.
+     */
+    private FrameParser.Frame nextFrame() throws IOException {
+        FrameParser.Frame frame;
+        while((frame = parser.next()) == null){
+            if(parser.helloReceived()){
+                out.write(FrameCodec.hello());
+                out.flush();
+            }
+            if(!parser.fill(rawIn)){
+                return null;
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * @return whether the client speaks the framed protocol.
+     */
+    public boolean isFramed(){
+        return parser != null && parser.isFramed();
+    }
+
+    /**
+     * Attempts to queue a message for the client.
+     * If fails, changes valid to false to signify
      * that the connection is no longer valid.
      * 
      * @return a boolean that represents whether the writing operation
      *          was successful or not.
      */
     public boolean writeMessage(String message){
+        byte[] frame = FrameCodec.toBytes(message, isFramed());
+        if(frame == null){
+            valid = false;
+            return false;
+        }
+        return writeFrame(frame);
+    }
+
+    /**
+     * Attempts to queue a message that is encoded once for all the
+     * connections. A message too long for this client's framing is
+     * skipped.
+     *
+     * @return a boolean that represents whether the writing operation
+     *          was successful or not.
+     */
+    public boolean writeFrame(FrameCodec.Encoded message){
+        byte[] frame = message.bytes(isFramed());
+        return (frame == null) ? valid : writeFrame(frame);
+    }
+
+    /**
+     * Attempts to queue an already encoded frame for the client. The frame
+     * is not copied, so the same array can be queued for every connection.
+     * If the client is too slow and the slow-consumer policy gives up on it,
+     * changes valid to false to signify that the connection is no longer valid.
+     *
+     * @return a boolean that represents whether the writing operation
+     *          was successful or not.
+     */
+    public boolean writeFrame(byte[] frame){
+        if(!valid || !queue.offer(ByteBuffer.wrap(frame))){
+            valid = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends part of a history log to the client before every frame queued
+     * after this call. Must be called before any frame is queued.
+     *
+     * @param log  the history
+     * @param from the offset of the first record to send
+     * @param to   where to stop, usually log.end()
+     */
+    public void replay(ChatLog log, long from, long to){
+        if(!valid || from >= to){
+            return;
+        }
+        replayFrom = from;
+        replayTo = to;
+        replayLog = log;
+        // wake the writer up even if nobody says anything
+        if(!queue.offer(ByteBuffer.allocate(0))){
+            valid = false;
+        }
+    }
+
+    /**
+     * @return the number of frames waiting to be written to the client.
+     */
+    public int queueDepth(){
+        return (queue == null) ? 0 : queue.depth();
+    }
+
+    /**
+     * @return the queue of frames waiting to be written to the client.
+     */
+    public OutboundQueue getQueue(){
+        return queue;
+    }
+
+    /**
+     * Stops the writer thread and closes the socket.
+     */
+    public void close(){
+        valid = false;
+        if(queue != null){
+            queue.close();
+        }
         try{
-            out.writeUTF(message);
-            return true;
+            if(socket != null){
+                socket.close();
+            }
+        }catch(IOException e ) {
+            // already closed
+        }
+    }
+
+    /**
+     * The body of the writer thread. Writes queued frames until the
+     * connection fails or is closed.
+     */
+    private void drain(){
+        try{
+            ByteBuffer frame;
+            while((frame = queue.take()) != null){
+                if(replayLog != null && !isFramed()){
+                    // the history is in framed frames, so it is converted
+                    ChatLog.Record record;
+                    for(long at = replayFrom; at < replayTo; at = record.next){
+                        record = replayLog.read(at);
+                        byte[] legacy = FrameCodec.framedToLegacy(record.frame);
+                        if(legacy != null){
+                            out.write(legacy);
+                        }
+                    }
+                    replayLog = null;
+                }else if(replayLog != null){
+                    // a socket made by a ServerSocket has no channel, so the
+                    // history goes through the stream in that case
+                    WritableByteChannel target = (socket.getChannel() != null)
+                        ? socket.getChannel() : Channels.newChannel(out);
+                    replayLog.transferTo(replayFrom, replayTo, target);
+                    replayLog = null;
+                }
+                out.write(frame.array(), frame.arrayOffset() + frame.position(),
+                        frame.remaining());
+            }
         }catch(Exception e ) {
             valid = false;
-            return false;
         }
     }
 
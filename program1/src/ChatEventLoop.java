@@ -0,0 +1,473 @@
+/**
+ * A single-threaded, non-blocking chat server loop. A Selector reports
+ * which channels are ready, so new clients are accepted and messages are
+ * forwarded as soon as they arrive, and the thread sleeps while idle.
+ *
+ * Clients talk in rooms. A client starts in the lobby, "/join <room>"
+ * moves it to another room, and "/leave" moves it back to the lobby. A
+ * message only goes to the clients in the sender's room.
+ *
+ * Several loops can share the rooms as shards, one thread each. A
+ * consistent hash ring assigns every room to one shard, and a client
+ * always lives on the shard that owns its room, so a shard handles its
+ * rooms without any locks. Joining a room owned by another shard hands
+ * the client over, with its buffered input and pending output, through
+ * that shard's incoming queue.
+ *
+ * With a ClusterBridge, the messages of local clients also go to the other
+ * servers of the cluster, and theirs arrive through the bridged queue of
+ * the shard that owns the room.
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.net.*;           // for InetSocketAddress
+import java.nio.*;           // for ByteBuffer
+import java.nio.channels.*;  // for Selector, ServerSocketChannel, SocketChannel
+import java.util.*;          // for ArrayList, HashMap, Iterator
+import java.util.concurrent.*; // for ConcurrentLinkedQueue
+import java.io.*;            // for IOException
+
+public class ChatEventLoop implements Runnable {
+    public static final String LOBBY = "lobby"; // the room every client starts in
+
+    private Selector selector;                 // readiness events of all channels
+    private ServerSocketChannel server;        // accepts new clients, on one shard only
+    private List<ChatChannel> connections;     // all the clients of this shard
+    private Map<String, List<ChatChannel>> rooms; // the clients of every room of this shard
+    private ConcurrentLinkedQueue<ChatChannel> incoming; // clients handed over by other shards
+    private ConcurrentLinkedQueue<ClusterBridge.Message> bridged; // messages from other servers
+    private ClusterBridge bridge;              // the link to the other servers, or null
+    private ChatEventLoop[] shards;            // every shard, this one included
+    private HashRing ring;                     // which shard owns which room
+    private int index;                         // this shard's index in shards
+    private ByteBuffer legacyOut;              // the writeUTF frame being broadcast, shared by all clients
+    private ByteBuffer framedOut;              // the same message in the framed protocol
+    private String outText;                    // the message being broadcast, or null if it is bytes
+    private byte[] outPrefix;                  // or the sender's prefix of the message
+    private FrameParser.Frame outPayload;      // and the payload the sender sent
+    private ByteBuffer legacy;                 // the message's writeUTF frame, null if too long
+    private ByteBuffer framed;                 // the message's framed frame, null if too long
+    private boolean legacyReady;               // whether legacy was encoded
+    private boolean framedReady;               // whether framed was encoded
+    private long metricsInterval;              // how often to print queue metrics, 0 for never
+    private ChatLog history;                   // every lobby message sent, or null
+    private long replay;                       // how many old messages a new client gets
+    private OutboundQueue.Settings queues;     // the settings of every client's outbound queue
+
+    /**
+     * Opens a non-blocking server channel on the given port, for a server
+     * with a single loop.
+     *
+     * @param port the port to listen on
+     * @throws IllegalArgumentException if the outbound queue properties are invalid
+     */
+    public ChatEventLoop(int port) throws IOException {
+        this(0, new ChatEventLoop[1], new HashRing(1), ChatLog.fromProperties(), null,
+             OutboundQueue.Settings.fromProperties());
+        listen(port);
+    }
+
+    /**
+     * Creates one shard of a sharded server.
+     */
+    private ChatEventLoop(int newIndex, ChatEventLoop[] newShards, HashRing newRing,
+                          ChatLog newHistory, ClusterBridge newBridge,
+                          OutboundQueue.Settings newQueues) throws IOException {
+        selector = Selector.open();
+        server = null;
+        connections = new ArrayList<ChatChannel>();
+        rooms = new HashMap<String, List<ChatChannel>>();
+        incoming = new ConcurrentLinkedQueue<ChatChannel>();
+        bridged = new ConcurrentLinkedQueue<ClusterBridge.Message>();
+        bridge = newBridge;
+        shards = newShards;
+        ring = newRing;
+        index = newIndex;
+        shards[index] = this;
+
+        // big enough for the longest writeUTF frame
+        legacyOut = ByteBuffer.allocateDirect(2 + 0xFFFF);
+        framedOut = ByteBuffer.allocateDirect(4 + 0xFFFF);
+
+        metricsInterval = Long.getLong("chat.metrics.ms", 0);
+
+        // a new client is sent the last chat.log.replay messages of the history
+        history = newHistory;
+        replay = Long.getLong("chat.log.replay", 100);
+        queues = newQueues;
+    }
+
+    /**
+     * Creates the shards of a server. The first one accepts the clients,
+     * and each needs its own thread to run.
+     *
+     * @param port   the port to listen on
+     * @param count  the number of shards
+     * @param bridge the link to the other servers of a cluster, or null
+     * @param queues the settings of every client's outbound queue
+     * @return the shards.
+     */
+    public static ChatEventLoop[] shards(int port, int count, ClusterBridge bridge,
+                                         OutboundQueue.Settings queues) throws IOException {
+        ChatEventLoop[] shards = new ChatEventLoop[count];
+        HashRing ring = new HashRing(count);
+        ChatLog history = ChatLog.fromProperties();
+        for(int i = 0; i < count; i++){
+            new ChatEventLoop(i, shards, ring, history, bridge, queues);
+        }
+        shards[0].listen(port);
+        if(bridge != null){
+            bridge.start(message -> shards[ring.shardOf(message.room)].bridgeIn(message));
+        }
+        return shards;
+    }
+
+    /**
+     * Makes this shard accept the clients of the server.
+     */
+    private void listen(int port) throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Waits for readiness events and handles them until the server fails.
+     */
+    public void run(){
+        try{
+            long lastMetrics = System.currentTimeMillis();
+            while(true){
+                selector.select(metricsInterval);
+
+                if(metricsInterval > 0
+                        && System.currentTimeMillis() - lastMetrics >= metricsInterval){
+                    lastMetrics = System.currentTimeMillis();
+                    printMetrics();
+                }
+
+                adopt();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if(!key.isValid()){
+                        continue;
+                    }
+
+                    if(key.isAcceptable()){
+                        accept();
+                        continue;
+                    }
+
+                    ChatChannel connection = (ChatChannel) key.attachment();
+                    if(key.isWritable()){
+                        connection.flush();
+                    }
+                    if(connection.valid && key.isReadable() && !receive(connection)){
+                        continue; // handed over to another shard
+                    }
+                    if(!connection.valid){
+                        remove(connection);
+                    }
+                }
+            }
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Accepts every pending client and hands it to the shard of the lobby.
+     */
+    private void accept() throws IOException {
+        SocketChannel client;
+        while((client = server.accept()) != null){
+            client.configureBlocking(false);
+            client.socket().setTcpNoDelay(true);
+            ChatChannel connection = new ChatChannel(client, null, queues);
+            connection.room = LOBBY;
+            ownerOf(LOBBY).handOver(connection);
+        }
+    }
+
+    /**
+     * Gives a client to this shard. Called from any thread; the client is
+     * registered by this shard's own thread.
+     */
+    private void handOver(ChatChannel connection){
+        incoming.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Gives a message from another server to this shard. Called from the
+     * bridge's threads.
+     */
+    private void bridgeIn(ClusterBridge.Message message){
+        bridged.add(message);
+        selector.wakeup();
+    }
+
+    /**
+     * Registers the clients handed over to this shard and handles the
+     * messages they sent before they moved.
+     */
+    private void adopt(){
+        ChatChannel connection;
+        while((connection = incoming.poll()) != null){
+            if(!connection.register(selector)){
+                connection.close();
+                continue;
+            }
+            connections.add(connection);
+            enter(connection);
+            if(parse(connection) && !connection.valid){
+                remove(connection);
+            }
+        }
+
+        ClusterBridge.Message message;
+        while((message = bridged.poll()) != null){
+            broadcast(message.room, message.text);
+        }
+    }
+
+    /**
+     * Reads from a ready client and handles every complete message.
+     *
+     * @return false if the client moved to another shard.
+     */
+    private boolean receive(ChatChannel connection){
+        if(!connection.read()){
+            return true;
+        }
+        return parse(connection);
+    }
+
+    /**
+     * Handles every complete message of a client. The first message of a
+     * client is its name, and the others are commands or messages for
+     * its room. Only the name and messages that start with a slash are
+     * decoded; the others are forwarded as bytes.
+     *
+     * @return false if the client moved to another shard.
+     */
+    private boolean parse(ChatChannel connection){
+        FrameParser.Frame frame;
+        while((frame = connection.nextFrame()) != null){
+            if(connection.name == null){
+                connection.setName(frame.toString());
+                if(history != null && connection.room.equals(LOBBY)){
+                    replay(connection);
+                }
+                continue;
+            }
+
+            String message = (frame.length() > 0 && frame.byteAt(0) == '/') ? frame.toString() : null;
+            if(message != null && message.startsWith("/join ")
+                    && !message.substring(6).trim().isEmpty()){
+                if(!move(connection, message.substring(6).trim())){
+                    return false;
+                }
+            }else if(message != null && message.equals("/leave")){
+                if(!move(connection, LOBBY)){
+                    return false;
+                }
+            }else{
+                forward(connection, frame);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends a client's message to its room and the other servers. The
+     * outgoing frames are the client's prefix and the payload's bytes,
+     * copied once into this loop's buffers and never decoded, unless
+     * they hold characters the two framings write differently.
+     */
+    private void forward(ChatChannel connection, FrameParser.Frame payload){
+        if(!connection.hasPortablePrefix() || !payload.isPortable()){
+            String message = connection.name + ": " + payload;
+            broadcast(connection.room, message);
+            if(bridge != null){
+                bridge.publish(connection.room, message);
+            }
+            return;
+        }
+
+        outText = null;
+        outPrefix = connection.prefix();
+        outPayload = payload;
+        legacyReady = framedReady = false;
+        broadcast(connection.room);
+        if(bridge != null && outgoing(true) != null){
+            bridge.publish(connection.room, framed, 4);
+        }
+        outPayload = null;
+    }
+
+    /**
+     * Sends the end of the history to a new client (see ChatChannel.replay()).
+     */
+    private void replay(ChatChannel connection){
+        connection.replay(history, history.offsetBack(replay), history.end());
+    }
+
+    /**
+     * Moves a client to a room, handing it to the room's shard if that is
+     * another shard.
+     *
+     * @return false if the client moved to another shard.
+     */
+    private boolean move(ChatChannel connection, String room){
+        leave(connection);
+        connection.room = room;
+
+        ChatEventLoop owner = ownerOf(room);
+        if(owner == this){
+            enter(connection);
+            return true;
+        }
+        connections.remove(connection);
+        connection.detach();
+        owner.handOver(connection);
+        return false;
+    }
+
+    /**
+     * Writes a message to every named client of a room.
+     */
+    private void broadcast(String room, String message){
+        outText = message;
+        outPrefix = null;
+        outPayload = null;
+        legacyReady = framedReady = false;
+        broadcast(room);
+    }
+
+    /**
+     * Writes the outgoing message to every named client of a room. The
+     * message is encoded once per framing, when the first client of that
+     * framing needs it, and the same bytes are written to every client of
+     * that framing. A client whose framing cannot carry the message skips
+     * it. Clients that fail are closed once the message is sent, since
+     * closing the sender would free the payload it is made of. Only lobby
+     * messages are kept in the history.
+     */
+    private void broadcast(String room){
+        if(history != null && outgoing(true) != null && room.equals(LOBBY)){
+            try{
+                history.append(framed, -1, null);
+            }catch(IOException e){
+                e.printStackTrace();
+            }
+        }
+
+        List<ChatChannel> members = rooms.get(room);
+        if(members == null){
+            return; // nobody here is in the room
+        }
+        List<ChatChannel> failed = null;
+        for(ChatChannel connection : members){
+            if(connection.name == null){
+                continue;
+            }
+            ByteBuffer bytes = outgoing(connection.isFramed());
+            if(bytes != null && !connection.writeFrame(bytes)){
+                if(failed == null){
+                    failed = new ArrayList<ChatChannel>();
+                }
+                failed.add(connection);
+            }
+        }
+        if(failed != null){
+            for(ChatChannel connection : failed){
+                remove(connection);
+            }
+        }
+    }
+
+    /**
+     * Encodes the outgoing message in a framing, if it was not yet, into
+     * this loop's buffer for that framing.
+     *
+     * @return the frame, or null if the message is too long for the framing.
+     */
+    private ByteBuffer outgoing(boolean isFramed){
+        if(isFramed && !framedReady){
+            framed = (outText != null)
+                ? FrameCodec.encode(outText, true, framedOut)
+                : FrameCodec.join(outPrefix, outPayload, true, framedOut);
+            if(framed != null && framed.capacity() > framedOut.capacity()){
+                framedOut = framed; // a bigger message than before; keep its buffer
+            }
+            framedReady = true;
+        }else if(!isFramed && !legacyReady){
+            legacy = (outText != null)
+                ? FrameCodec.encode(outText, false, legacyOut)
+                : FrameCodec.join(outPrefix, outPayload, false, legacyOut);
+            legacyReady = true;
+        }
+        return isFramed ? framed : legacy;
+    }
+
+    /**
+     * @return the shard that owns a room.
+     */
+    private ChatEventLoop ownerOf(String room){
+        return shards[ring.shardOf(room)];
+    }
+
+    /**
+     * Adds a client to the members of its room.
+     */
+    private void enter(ChatChannel connection){
+        rooms.computeIfAbsent(connection.room, room -> new ArrayList<ChatChannel>())
+             .add(connection);
+    }
+
+    /**
+     * Removes a client from the members of its room.
+     */
+    private void leave(ChatChannel connection){
+        List<ChatChannel> members = rooms.get(connection.room);
+        if(members != null && members.remove(connection) && members.isEmpty()){
+            rooms.remove(connection.room);
+        }
+    }
+
+    /**
+     * Prints the outbound queue depths of all the clients to stderr.
+     */
+    private void printMetrics(){
+        int queued = 0, maxDepth = 0;
+        long dropped = 0;
+        for(ChatChannel connection : connections){
+            queued += connection.queueDepth();
+            maxDepth = Math.max(maxDepth, connection.getQueue().maxDepth());
+            dropped += connection.getQueue().dropped();
+        }
+        System.err.println((shards.length > 1 ? "shard=" + index + " " : "") +
+                           "clients=" + connections.size() + " rooms=" + rooms.size() +
+                           " queued=" + queued + " maxDepth=" + maxDepth +
+                           " dropped=" + dropped +
+                           (bridge != null && index == 0 ? " " + bridge.metrics() : ""));
+    }
+
+    /**
+     * Closes a connection and forgets it. Safe to call more than once.
+     */
+    private void remove(ChatChannel connection){
+        connection.close();
+        connections.remove(connection);
+        leave(connection);
+    }
+
+}
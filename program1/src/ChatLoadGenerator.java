@@ -0,0 +1,248 @@
+/**
+ * A headless load generator for ChatServer. Connects many synthetic clients
+ * that speak the ChatClient protocol (writeUTF name, then writeUTF
+ * messages), sends at a fixed total rate, and measures how long every copy
+ * of every message takes to come back. Since the senders and receivers are
+ * in the same JVM, every message just carries its System.nanoTime().
+ *
+ * Prints one result as CSV (with a header) or JSON. Latencies are in
+ * microseconds.
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.net.*;               // for Socket
+import java.io.*;                // for DataInputStream, DataOutputStream
+import java.util.*;              // for List, Locale
+import java.util.concurrent.*;   // for ExecutorService
+import java.util.concurrent.atomic.*; // for LongAdder
+
+public class ChatLoadGenerator {
+    private static final long SETTLE_MS = 500;   // lets the server register names
+    private static final long DRAIN_MS = 2000;   // lets the last messages arrive
+
+    private String host;                  // the chat server
+    private int port;                     // the chat server's port
+    private int clients;                  // number of synthetic clients
+    private int rate;                     // messages per second, all clients together
+    private int size;                     // characters per message
+    private int seconds;                  // how long to send
+
+    private List<Socket> sockets;         // a connection for every client
+    private List<DataOutputStream> outs;  // the output stream of every client
+    private LatencyHistogram latency;     // end-to-end delivery latency in ns
+    private LongAdder sent;               // messages sent
+    private LongAdder received;           // copies of messages received
+    private volatile boolean recording;   // whether deliveries are measured
+    private long firstSend;               // System.nanoTime() when sending started
+    private AtomicLong lastDelivery;      // System.nanoTime() of the last recorded delivery
+
+    public ChatLoadGenerator(String newHost, int newPort, int newClients,
+                             int newRate, int newSize, int newSeconds){
+        host = newHost;
+        port = newPort;
+        clients = newClients;
+        rate = newRate;
+        size = newSize;
+        seconds = newSeconds;
+
+        sockets = new ArrayList<Socket>();
+        outs = new ArrayList<DataOutputStream>();
+        latency = new LatencyHistogram();
+        sent = new LongAdder();
+        received = new LongAdder();
+        recording = false;
+        firstSend = 0;
+        lastDelivery = new AtomicLong();
+    }
+
+    /**
+     * Connects the clients, sends for the configured time, and waits for
+     * the last deliveries.
+     */
+    public void run() throws IOException, InterruptedException {
+        ExecutorService readers = VirtualThreads.newPerTaskExecutor();
+        for(int i = 0; i < clients; i++){
+            Socket socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF("load" + i);
+            sockets.add(socket);
+            outs.add(out);
+
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            readers.execute(() -> receive(in));
+        }
+        Thread.sleep(SETTLE_MS);
+
+        // every sender owns the clients i with i % senders == its index
+        int senders = Math.max(1, Math.min(clients, Runtime.getRuntime().availableProcessors()));
+        firstSend = System.nanoTime();
+        long end = firstSend + seconds * 1_000_000_000L;
+        recording = true;
+
+        Thread[] threads = new Thread[senders];
+        for(int s = 0; s < senders; s++){
+            int first = s;
+            threads[s] = new Thread(() -> send(first, senders, end), "sender-" + s);
+            threads[s].start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+
+        Thread.sleep(DRAIN_MS);
+        recording = false;
+        for(Socket socket : sockets){
+            socket.close();
+        }
+        readers.shutdownNow();
+    }
+
+    /**
+     * The body of a sender thread. Sends round robin from its clients,
+     * spacing the messages evenly so all senders add up to the total rate.
+     */
+    private void send(int first, int senders, long end){
+        double interval = 1e9 * senders / Math.max(1, rate); // ns between messages
+        char[] padding = new char[size];
+        Arrays.fill(padding, 'x');
+        String pad = new String(padding);
+
+        long next = System.nanoTime();
+        int client = first;
+        try{
+            while(next < end){
+                long now = System.nanoTime();
+                if(now < next){
+                    long wait = next - now;
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                }
+
+                // "<nanoTime> xxxx..." padded to the message size
+                String stamp = Long.toString(System.nanoTime()) + ' ';
+                outs.get(client).writeUTF(stamp + pad.substring(Math.min(size, stamp.length())));
+                sent.increment();
+
+                client += senders;
+                if(client >= clients){
+                    client = first;
+                }
+                next += (long) interval;
+            }
+        }catch(IOException | InterruptedException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The body of a reader task. Records the latency of every message it
+     * receives until its socket is closed.
+     */
+    private void receive(DataInputStream in){
+        try{
+            while(true){
+                String message = in.readUTF();
+                long now = System.nanoTime();
+                if(!recording){
+                    continue;
+                }
+
+                // "<name>: <nanoTime> xxxx..."
+                int start = message.indexOf(": ") + 2;
+                int stop = message.indexOf(' ', start);
+                if(start < 2 || stop < 0){
+                    continue;
+                }
+                latency.record(now - Long.parseLong(message.substring(start, stop)));
+                received.increment();
+                lastDelivery.accumulateAndGet(now, Math::max);
+            }
+        }catch(IOException | NumberFormatException e){
+            // closed at the end of the run
+        }
+    }
+
+    /**
+     * @return the results in the given format, "csv" or "json". The
+     *         delivery rate is over the time from the first send to the
+     *         last delivery, since deliveries keep arriving after the
+     *         senders stop.
+     */
+    public String report(String format, String mode){
+        double micros = 1000.0;
+        double delivering = (lastDelivery.get() > firstSend)
+            ? (lastDelivery.get() - firstSend) / 1e9 : seconds;
+        String[] names = { "mode", "clients", "rate", "size", "seconds", "sent",
+                           "received", "delivery_seconds", "deliveries_per_sec",
+                           "mean_us", "p50_us", "p90_us", "p99_us", "p999_us", "max_us" };
+        Object[] values = { mode, clients, rate, size, seconds, sent.sum(),
+                            received.sum(), delivering, received.sum() / delivering,
+                            latency.mean() / micros, latency.percentile(50) / micros,
+                            latency.percentile(90) / micros, latency.percentile(99) / micros,
+                            latency.percentile(99.9) / micros, latency.max() / micros };
+
+        StringBuilder result = new StringBuilder();
+        if(format.equals("json")){
+            result.append('{');
+            for(int i = 0; i < names.length; i++){
+                result.append(i == 0 ? "" : ", ").append('"').append(names[i]).append("\": ");
+                result.append(values[i] instanceof String ? "\"" + values[i] + "\"" : format(values[i]));
+            }
+            result.append('}');
+        }else{
+            result.append(String.join(",", names)).append('\n');
+            for(int i = 0; i < values.length; i++){
+                result.append(i == 0 ? "" : ",").append(format(values[i]));
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return a number with at most one decimal place.
+     */
+    private static String format(Object value){
+        if(value instanceof Double){
+            return String.format(Locale.ROOT, "%.1f", (Double) value);
+        }
+        return String.valueOf(value);
+    }
+
+    public static void main(String args[]){
+        if(args.length < 6 || args.length > 8){
+            System.err.println("Syntax: java ChatLoadGenerator <server ip name> <port> " +
+                    "<clients> <messages/sec> <message size> <seconds> [csv|json] " +
+                    "[poll|nio|threads]");
+            System.exit(1);
+        }
+
+        int port = Integer.parseInt(args[1]);
+        String format = (args.length > 6) ? args[6] : "csv";
+        String mode = (args.length > 7) ? args[7] : "external";
+
+        // optionally run the server under test in this JVM
+        if(args.length > 7){
+            Thread server = new Thread(() -> ChatServer.main(
+                    new String[] { Integer.toString(port), args[7] }), "server");
+            server.setDaemon(true);
+            server.start();
+        }
+
+        try{
+            Thread.sleep(args.length > 7 ? SETTLE_MS : 0);
+            ChatLoadGenerator generator = new ChatLoadGenerator(args[0], port,
+                    Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                    Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+            generator.run();
+            System.out.println(generator.report(format, mode));
+        }catch(Exception e){
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+}
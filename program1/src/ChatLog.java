@@ -0,0 +1,455 @@
+/**
+ * An append-only chat history, kept in memory-mapped segment files so a
+ * client that connects later can be sent what it missed.
+ *
+ * Every record is a frame exactly as it goes on the wire, so replaying the
+ * log to a client is a plain FileChannel.transferTo() from the data files
+ * to the client's channel. Records have a logical offset: the number of
+ * log bytes before them, counted across all segments.
+ *
+ * A segment is two files named after the offset of its first record:
+ *
+ *   <offset>.log  the frames, back to back
+ *   <offset>.idx  per frame: int length, int sender, int n, int * n clock
+ *
+ * Both are preallocated and mapped, so appending is a copy into memory and
+ * the kernel writes the pages back in the background. An index entry's
+ * length is written last, so after a crash the log ends at the first
+ * entry whose length is still zero. chat.log.segment.bytes sets the size
+ * of a data file (64 MB by default), and a full segment is followed by a
+ * new one. force() waits until everything appended is on disk. It runs
+ * when a segment fills up, when the log is closed, and every
+ * chat.log.force.ms milliseconds on a background thread (1000 by
+ * default, 0 for never), so a crash loses at most the appends of that
+ * long; the kernel may write back more, but nothing promises it will.
+ *
+ * Every block of BLOCK records of a segment also keeps the entry-wise
+ * maximum of their clocks, so offsetAfter() skips the blocks a clock
+ * already covers and only reads the entries of one block.
+ *
+ * All the methods are thread safe.
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.io.*;                  // for File, IOException
+import java.nio.*;                 // for MappedByteBuffer
+import java.nio.channels.*;        // for FileChannel, WritableByteChannel
+import java.nio.file.*;            // for StandardOpenOption
+import java.util.*;                // for List, ArrayList, Arrays
+
+public class ChatLog implements Closeable {
+    private static final int ENTRY_HEADER = 12; // length, sender and n of an index entry
+    private static final int BLOCK = 64;        // records per clock checkpoint
+
+    private File directory;            // where the segment files are
+    private int segmentBytes;          // the size of a new data file
+    private List<Segment> segments;    // every segment, oldest first
+    private Segment last;              // the segment appends go to
+    private long records;              // number of records in the log
+    private Thread forcer;             // forces the appends to disk periodically, or null
+    private volatile boolean closed;   // whether close() was called
+
+    /**
+     * Opens the log in a directory, creating the directory if needed, and
+     * recovers every record a previous run appended.
+     *
+     * @param newDirectory where the segment files are kept
+     * @param newSegmentBytes the size of a new data file
+     */
+    public ChatLog(File newDirectory, int newSegmentBytes) throws IOException {
+        this(newDirectory, newSegmentBytes, 0);
+    }
+
+    /**
+     * Opens the log like ChatLog(File, int), and forces the appends to
+     * disk periodically.
+     *
+     * @param forceMillis how often to force the appends to disk, 0 for
+     *                    only when a segment fills up and on close()
+     */
+    public ChatLog(File newDirectory, int newSegmentBytes, long forceMillis) throws IOException {
+        directory = newDirectory;
+        segmentBytes = newSegmentBytes;
+        segments = new ArrayList<Segment>();
+        records = 0;
+
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("cannot create " + directory);
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        Arrays.sort(files);
+        for(File file : files){
+            long base = Long.parseLong(file.getName().substring(0, file.getName().length() - 4));
+            Segment segment = new Segment(base, 0, 0);
+            segments.add(segment);
+            records += segment.count;
+        }
+
+        if(segments.isEmpty()){
+            segments.add(new Segment(0, segmentBytes, segmentBytes / 4));
+        }
+        last = segments.get(segments.size() - 1);
+
+        closed = false;
+        forcer = null;
+        if(forceMillis > 0){
+            forcer = new Thread(() -> forceEvery(forceMillis), "chat-log-force");
+            forcer.setDaemon(true);
+            forcer.start();
+        }
+    }
+
+    /**
+     * @return the log in the directory named by the chat.log.dir system
+     *         property, or null if it is not set.
+     */
+    public static ChatLog fromProperties() throws IOException {
+        String dir = System.getProperty("chat.log.dir");
+        if(dir == null){
+            return null;
+        }
+        return new ChatLog(new File(dir), Integer.getInteger("chat.log.segment.bytes", 64 << 20),
+                           Long.getLong("chat.log.force.ms", 1000));
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param frame  the frame as it is sent; its remaining bytes are
+     *               appended and its position is untouched
+     * @param sender the rank of the sender, or -1 if there is none
+     * @param clock  the vector clock of the message, or null if there is none
+     * @return the offset of the record.
+     */
+    public synchronized long append(ByteBuffer frame, int sender, int[] clock) throws IOException {
+        int length = frame.remaining();
+        int entry = ENTRY_HEADER + 4 * (clock == null ? 0 : clock.length);
+        if(length > last.data.remaining() || entry > last.index.remaining()){
+            // a record bigger than a segment gets a segment of its own size,
+            // and the full one goes to disk before the log moves on
+            last.data.force();
+            last.index.force();
+            last = new Segment(end(), Math.max(segmentBytes, length),
+                               Math.max(segmentBytes / 4, entry));
+            segments.add(last);
+        }
+
+        long offset = end();
+        last.data.put(frame.duplicate());
+
+        int at = last.index.position();
+        last.index.putInt(at + 4, sender);
+        last.index.putInt(at + 8, clock == null ? 0 : clock.length);
+        for(int i = 0; clock != null && i < clock.length; i++){
+            last.index.putInt(at + ENTRY_HEADER + 4 * i, clock[i]);
+        }
+        last.index.putInt(at, length); // last, so a torn entry reads as the end
+        last.index.position(at + entry);
+        last.add(offset, at);
+        records++;
+        return offset;
+    }
+
+    /**
+     * Appends a record from an array.
+     *
+     * @see #append(ByteBuffer, int, int[])
+     */
+    public long append(byte[] frame, int sender, int[] clock) throws IOException {
+        return append(ByteBuffer.wrap(frame), sender, clock);
+    }
+
+    /**
+     * @return the offset the next record will get.
+     */
+    public synchronized long end(){
+        return last.base + last.data.position();
+    }
+
+    /**
+     * @return the number of records in the log.
+     */
+    public synchronized long size(){
+        return records;
+    }
+
+    /**
+     * @return the offset of the count-th newest record, or of the oldest
+     *         record if there are fewer, so replaying from it sends at
+     *         most the last count records.
+     */
+    public synchronized long offsetBack(long count){
+        for(int s = segments.size() - 1; s >= 0; s--){
+            Segment segment = segments.get(s);
+            if(count <= segment.count){
+                return (count == 0) ? end() : segment.offsets[segment.count - (int) count];
+            }
+            count -= segment.count;
+        }
+        return segments.get(0).base;
+    }
+
+    /**
+     * Finds where a node that has seen everything up to a vector clock
+     * should resume: the first record that clock has not seen.
+     *
+     * @return the offset of the oldest record whose clock is not covered
+     *         by the given one, or end() if there is none.
+     */
+    public synchronized long offsetAfter(int[] clock){
+        for(Segment segment : segments){
+            for(int b = 0; b * BLOCK < segment.count; b++){
+                if(covers(clock, segment.maxima[b])){
+                    continue; // every record of the block was seen
+                }
+                int stop = Math.min(segment.count, (b + 1) * BLOCK);
+                for(int r = b * BLOCK; r < stop; r++){
+                    int at = segment.entries[r];
+                    int n = segment.index.getInt(at + 8);
+                    for(int i = 0; i < n; i++){
+                        if(segment.index.getInt(at + ENTRY_HEADER + 4 * i) > seen(clock, i)){
+                            return segment.offsets[r];
+                        }
+                    }
+                }
+            }
+        }
+        return end();
+    }
+
+    /**
+     * @return whether a clock has seen everything up to another.
+     */
+    private static boolean covers(int[] clock, int[] other){
+        for(int i = 0; i < other.length; i++){
+            if(other[i] > seen(clock, i)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return entry i of a clock, which is 0 past its end or if there is none.
+     */
+    private static int seen(int[] clock, int i){
+        return (clock != null && i < clock.length) ? clock[i] : 0;
+    }
+
+    /**
+     * Reads one record.
+     *
+     * @param offset the offset of a record
+     * @return the record, or null if no record starts at offset.
+     */
+    public synchronized Record read(long offset){
+        Segment segment = find(offset);
+        int r = (segment == null) ? -1 : Arrays.binarySearch(segment.offsets, 0, segment.count, offset);
+        if(r < 0){
+            return null;
+        }
+
+        int at = segment.entries[r];
+        Record record = new Record();
+        record.offset = offset;
+        record.frame = new byte[segment.index.getInt(at)];
+        record.next = offset + record.frame.length;
+        record.sender = segment.index.getInt(at + 4);
+        record.clock = new int[segment.index.getInt(at + 8)];
+        for(int i = 0; i < record.clock.length; i++){
+            record.clock[i] = segment.index.getInt(at + ENTRY_HEADER + 4 * i);
+        }
+        ByteBuffer data = segment.data.duplicate();
+        data.position((int) (offset - segment.base));
+        data.get(record.frame);
+        return record;
+    }
+
+    /**
+     * Sends the log bytes between two offsets to a channel without copying
+     * them through the JVM. A non-blocking channel may take only part of
+     * them, and the caller continues from the returned position later.
+     *
+     * @param from   where to start, the offset of a record
+     * @param to     where to stop, at most end()
+     * @param target the channel to write to
+     * @return the offset after the last byte sent.
+     */
+    public long transferTo(long from, long to, WritableByteChannel target) throws IOException {
+        while(from < to){
+            Segment segment;
+            long used;
+            synchronized(this){
+                segment = find(from);
+                used = (segment == last) ? last.data.position() : segment.used;
+            }
+            long stop = Math.min(to, segment.base + used);
+            long sent = segment.file.transferTo(from - segment.base, stop - from, target);
+            from += sent;
+            if(sent == 0){
+                break; // the channel is full
+            }
+        }
+        return from;
+    }
+
+    /**
+     * Waits until everything appended so far is on disk. Appends can go on
+     * meanwhile; the ones that do may or may not be written.
+     */
+    public void force(){
+        Segment segment;
+        synchronized(this){
+            segment = last;
+        }
+        // the data first, so an index entry never reaches the disk before its frame
+        segment.data.force();
+        segment.index.force();
+    }
+
+    /**
+     * The body of the forcer thread.
+     */
+    private void forceEvery(long millis){
+        try{
+            while(!closed){
+                Thread.sleep(millis);
+                synchronized(this){
+                    if(closed){
+                        return;
+                    }
+                }
+                force();
+            }
+        }catch(InterruptedException e){
+            // closed
+        }
+    }
+
+    /**
+     * Writes everything back to disk and closes the files.
+     */
+    public synchronized void close() throws IOException {
+        closed = true;
+        if(forcer != null){
+            forcer.interrupt();
+        }
+        last.data.force();
+        last.index.force();
+        for(Segment segment : segments){
+            segment.file.close();
+            segment.indexFile.close();
+        }
+    }
+
+    /**
+     * @return the segment that holds offset, or null if none does.
+     */
+    private Segment find(long offset){
+        for(int s = segments.size() - 1; s >= 0; s--){
+            if(segments.get(s).base <= offset){
+                Segment segment = segments.get(s);
+                long used = (segment == last) ? last.data.position() : segment.used;
+                return (offset < segment.base + used) ? segment : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * One record of the log.
+     */
+    public static class Record {
+        public long offset;    // where the record starts
+        public long next;      // where the next record starts
+        public int sender;     // the rank of the sender, or -1
+        public int[] clock;    // the vector clock, empty if there is none
+        public byte[] frame;   // the frame as it is sent
+    }
+
+    /**
+     * A data file and its index, both mapped.
+     */
+    private class Segment {
+        long base;                  // the offset of the first record
+        FileChannel file;           // the data file
+        FileChannel indexFile;      // the index file
+        MappedByteBuffer data;      // the data file; its position is the end of the data
+        MappedByteBuffer index;     // the index; its position is the end of the entries
+        long used;                  // bytes of data in use, once the segment is full
+        long[] offsets;             // the offset of every record
+        int[] entries;              // where every record's index entry starts
+        int[][] maxima;             // the entry-wise maximum clock of every block of records
+        int count;                  // number of records
+
+        /**
+         * Opens a segment, creating its files with the given sizes if they
+         * do not exist, and reads its index.
+         */
+        Segment(long newBase, int dataBytes, int indexBytes) throws IOException {
+            base = newBase;
+            String name = String.format("%020d", base);
+            file = FileChannel.open(new File(directory, name + ".log").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            indexFile = FileChannel.open(new File(directory, name + ".idx").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            data = file.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(file.size(), dataBytes));
+            index = indexFile.map(FileChannel.MapMode.READ_WRITE, 0,
+                                  Math.max(indexFile.size(), indexBytes));
+            offsets = new long[64];
+            entries = new int[64];
+            maxima = new int[1][];
+            count = 0;
+
+            // recover: the entries end at the first zero length
+            int at = 0;
+            long end = 0;
+            while(at + ENTRY_HEADER <= index.limit()){
+                int length = index.getInt(at);
+                int n = index.getInt(at + 8);
+                if(length <= 0 || n < 0 || end + length > data.limit()
+                        || at + ENTRY_HEADER + 4L * n > index.limit()){
+                    break;
+                }
+                add(base + end, at);
+                end += length;
+                at += ENTRY_HEADER + 4 * n;
+            }
+            data.position((int) end);
+            index.position(at);
+            used = end;
+        }
+
+        /**
+         * Remembers a record of this segment.
+         */
+        void add(long offset, int entry){
+            if(count == offsets.length){
+                offsets = Arrays.copyOf(offsets, count * 2);
+                entries = Arrays.copyOf(entries, count * 2);
+            }
+            offsets[count] = offset;
+            entries[count] = entry;
+
+            // fold the record's clock into the maximum of its block
+            int b = count / BLOCK;
+            if(b == maxima.length){
+                maxima = Arrays.copyOf(maxima, b * 2);
+            }
+            int n = index.getInt(entry + 8);
+            if(maxima[b] == null){
+                maxima[b] = new int[n];
+            }else if(maxima[b].length < n){
+                maxima[b] = Arrays.copyOf(maxima[b], n);
+            }
+            for(int i = 0; i < n; i++){
+                maxima[b][i] = Math.max(maxima[b][i], index.getInt(entry + ENTRY_HEADER + 4 * i));
+            }
+            count++;
+            used = data.position();
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/**
+ * The shared broadcast structure of the thread-per-connection server.
+ * Every connection's reader thread puts each message behind its sender's
+ * name and publishes it into a lock-free queue, and one dispatcher thread
+ * queues it for every member. Having a single dispatcher keeps the central server's guarantee
+ * that all clients see messages in the same order. Membership is a
+ * concurrent set, so joining, leaving and broadcasting never lock the room.
+ *
+ * With a history log, the dispatcher appends every message to it, and
+ * joins go through the dispatcher too, so a new member is sent exactly
+ * the history before it joined and then every message after.
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.util.*;             // for Set, Collection
+import java.util.concurrent.*;  // for ConcurrentHashMap, LinkedTransferQueue
+import java.io.*;               // for IOException
+
+public class ChatRoom {
+    private Set<ChatConnection> members;         // everybody who receives the room's messages
+    private LinkedTransferQueue<Object> published; // messages, and joins if there is a history
+    private ChatLog history;                      // every message sent, or null
+    private long replay;                          // how many old messages a new member gets
+
+    /**
+     * Creates an empty room and starts its dispatcher.
+     *
+     * @param threads runs the dispatcher task
+     */
+    public ChatRoom(Executor threads){
+        this(threads, null);
+    }
+
+    /**
+     * Creates an empty room that keeps its messages in a history log, and
+     * starts its dispatcher. A new member is sent the last chat.log.replay
+     * messages (100 by default).
+     *
+     * @param threads    runs the dispatcher task
+     * @param newHistory the history log, or null to keep none
+     */
+    public ChatRoom(Executor threads, ChatLog newHistory){
+        members = ConcurrentHashMap.newKeySet();
+        published = new LinkedTransferQueue<Object>();
+        history = newHistory;
+        replay = Long.getLong("chat.log.replay", 100);
+        threads.execute(this::dispatch);
+    }
+
+    /**
+     * Adds a connection to the room.
+     */
+    public void join(ChatConnection connection){
+        if(history == null){
+            members.add(connection);
+        }else{
+            published.add(connection); // the dispatcher sends it the history first
+        }
+    }
+
+    /**
+     * Removes a connection from the room and closes it.
+     */
+    public void leave(ChatConnection connection){
+        members.remove(connection);
+        connection.close();
+    }
+
+    /**
+     * Hands a message to the dispatcher without blocking.
+     */
+    public void publish(FrameCodec.Encoded message){
+        published.add(message);
+    }
+
+    /**
+     * The body of the dispatcher. Broadcasts published messages in order.
+     */
+    private void dispatch(){
+        try{
+            while(true){
+                Object next = published.take();
+                if(next instanceof ChatConnection){
+                    ChatConnection connection = (ChatConnection) next;
+                    connection.replay(history, history.offsetBack(replay), history.end());
+                    members.add(connection);
+                }else{
+                    broadcast((FrameCodec.Encoded) next);
+                }
+            }
+        }catch(InterruptedException e){
+            // the server is shutting down
+        }
+    }
+
+    /**
+     * Queues a message, encoded once per framing, for every member. Members whose
+     * slow-consumer policy gives up on them are removed.
+     */
+    private void broadcast(FrameCodec.Encoded frame){
+        if(history != null && frame.bytes(true) != null){
+            try{
+                history.append(frame.bytes(true), -1, null);
+            }catch(IOException e){
+                e.printStackTrace();
+            }
+        }
+
+        for(ChatConnection member : members){
+            if(!member.writeFrame(frame)){
+                leave(member);
+            }
+        }
+    }
+
+    /**
+     * @return a live view of the members of the room.
+     */
+    public Collection<ChatConnection> getMembers(){
+        return members;
+    }
+
+}
@@ -2,6 +2,14 @@
 /**
  * ChatServer.java
  * A central chat server.
+ * With -Dchat.log.dir, every message is kept in a ChatLog there and a new
+ * client is first sent the last -Dchat.log.replay messages.
+ * In the nio mode, -Dchat.cluster.port and -Dchat.cluster.peers join
+ * servers into a cluster (see ClusterBridge); runCluster.sh tests one on
+ * localhost.
+ * Only the nio mode writes to clients without blocking. The poll and
+ * threads modes give every client a writer thread that blocks on its
+ * socket: a virtual thread on Java 21 and later, a platform thread before.
  *
  * @author  Youssef Beltagy
  * @version 4/20/2020
@@ -10,24 +18,77 @@
 import java.net.*;          // for Socket
 import java.util.*;         // for Vector
 import java.io.*;           // for IOException
+import java.util.concurrent.*; // for ExecutorService
 
 public class ChatServer {
 
     public static void main( String args[] ) {
         // Check # args.
-        if ( args.length != 1) {
-            System.err.println( "Syntax: java ChatClient <port>" );
+        if ( args.length < 1 || args.length > 2 ) {
+            System.err.println( "Syntax: java ChatServer <port> [poll|nio|threads]" );
             System.exit( 1 );
         }
     
         // convert args[0] into an integer that will be used as port.
         int port = Integer.parseInt( args[0] );
 
+        // every client's outbound queue gets the same settings, checked once here
+        OutboundQueue.Settings queues = null;
+        try {
+            queues = OutboundQueue.Settings.fromProperties( );
+        } catch ( IllegalArgumentException e ) {
+            System.err.println( e.getMessage( ) );
+            System.exit( 1 );
+        }
+
+        // the nio mode waits on selectors instead of polling every connection,
+        // with its rooms spread over -Dchat.shards event loops (one per core
+        // by default).
+        if ( args.length == 2 && args[1].equals( "nio" ) ) {
+            try {
+                int count = Integer.getInteger( "chat.shards",
+                                                Runtime.getRuntime( ).availableProcessors( ) );
+                ChatEventLoop[] shards = ChatEventLoop.shards( port, Math.max( 1, count ),
+                                                               ClusterBridge.fromProperties( ),
+                                                               queues );
+                for ( int i = 1; i < shards.length; i++ ) {
+                    new Thread( shards[i], "shard-" + i ).start( );
+                }
+                shards[0].run( );
+            } catch( IOException e ) {
+                e.printStackTrace( );
+            }
+            return;
+        }
+
+        // the threads mode gives every connection its own (virtual) threads.
+        if ( args.length == 2 && args[1].equals( "threads" ) ) {
+            runThreads( port, queues );
+            return;
+        }
+
+        // the poll mode drains every client's queue with blocking writes on a
+        // writer thread of its own; only the nio mode writes without blocking
+        if ( !VirtualThreads.available( ) ) {
+            System.err.println( "poll mode: one platform writer thread per client " +
+                                "(virtual threads need Java 21); the nio mode needs none" );
+        }
+
         // A vector of all the connections
         Vector<ChatConnection> connections = new Vector<ChatConnection>();
+
+        // every message sent, if -Dchat.log.dir is set, and how many of the
+        // last ones a new client is sent
+        ChatLog history = null;
+        long replay = Long.getLong( "chat.log.replay", 100 );
+
+        // how often to print the outbound queue metrics, 0 to never print
+        long metricsInterval = Long.getLong( "chat.metrics.ms", 0 );
+        long lastMetrics = System.currentTimeMillis( );
     
         // instantiate the main body of ChatServer application.
         try {
+            history = ChatLog.fromProperties( );
             ServerSocket svr = new ServerSocket(port);
             svr.setSoTimeout(500);  // set the timeout
             
@@ -41,10 +102,15 @@ public class ChatServer {
 
                 // Add a new conecction if newClient is not null
                 if(newClient != null){
-                    connections.add(new ChatConnection(newClient));
+                    ChatConnection connection = new ChatConnection(newClient, queues);
+                    if(history != null){
+                        connection.replay(history, history.offsetBack(replay), history.end());
+                    }
+                    connections.add(connection);
                 }
 
-                Set<Integer> toDelete = new HashSet<Integer>();
+                // highest index first, so deleting does not shift the others
+                Set<Integer> toDelete = new TreeSet<Integer>(Collections.reverseOrder());
                  
 
                 //loop through all connections.
@@ -53,13 +119,20 @@ public class ChatServer {
                     // while there is a message in the current connection,
                     while(connections.get(i).hasMessage()){
                         
-                        // read the message and loop through all other connections
-                        String message = connections.get(i).name + ": "
-                                     + connections.get(i).getMessage();
+                        // read the message, encoded once per framing for all
+                        // the connections, and loop through all other connections
+                        FrameCodec.Encoded frame = connections.get(i).getNamedMessage();
+                        if(frame == null){
+                            break;
+                        }
+                        if(history != null && frame.bytes(true) != null){
+                            history.append(frame.bytes(true), -1, null);
+                        }
+
                         for(int j = 0; j < connections.size(); j++){
 
                             
-                            connections.get(j).writeMessage(message);
+                            connections.get(j).writeFrame(frame);
                             
 
                             // if you fail to write to a connection,
@@ -74,7 +147,13 @@ public class ChatServer {
 
                 // Delete all indices in the set
                 for(Integer cur : toDelete){
-                    connections.remove(cur.intValue());
+                    connections.remove(cur.intValue()).close();
+                }
+
+                if(metricsInterval > 0
+                        && System.currentTimeMillis() - lastMetrics >= metricsInterval){
+                    lastMetrics = System.currentTimeMillis();
+                    printMetrics(connections);
                 }
 
             }
@@ -84,4 +163,82 @@ public class ChatServer {
         }
     }
 
+    /**
+     * Runs the thread-per-connection server. The main thread only accepts.
+     * Every client gets a reader thread that blocks in readUTF and publishes
+     * into a shared room, and a writer thread that drains its queue. All of
+     * them are virtual threads when the JVM supports them.
+     *
+     * @param port   the port to listen on
+     * @param queues the settings of every client's outbound queue
+     */
+    public static void runThreads( int port, OutboundQueue.Settings queues ) {
+        ExecutorService threads = VirtualThreads.newPerTaskExecutor( );
+        ChatRoom room;
+        try {
+            room = new ChatRoom( threads, ChatLog.fromProperties( ) );
+        } catch( IOException e ) {
+            e.printStackTrace( );
+            return;
+        }
+
+        long metricsInterval = Long.getLong( "chat.metrics.ms", 0 );
+        if ( metricsInterval > 0 ) {
+            Thread metrics = new Thread( ( ) -> {
+                try {
+                    while ( true ) {
+                        Thread.sleep( metricsInterval );
+                        printMetrics( room.getMembers( ) );
+                    }
+                } catch ( InterruptedException e ) {
+                    // stop reporting
+                }
+            } );
+            metrics.setDaemon( true );
+            metrics.start( );
+        }
+
+        try {
+            ServerSocket svr = new ServerSocket( port );
+            while ( true ) {
+                Socket newClient = svr.accept( );
+                threads.execute( ( ) -> {
+                    // reading the name blocks, so it happens on the reader thread
+                    ChatConnection connection = new ChatConnection( newClient, threads, queues );
+                    if ( !connection.valid ) {
+                        connection.close( );
+                        return;
+                    }
+
+                    room.join( connection );
+                    FrameCodec.Encoded message;
+                    while ( connection.valid
+                            && ( message = connection.getNamedMessage( ) ) != null ) {
+                        room.publish( message );
+                    }
+                    room.leave( connection );
+                } );
+            }
+        } catch( IOException e ) {
+            e.printStackTrace( );
+        }
+    }
+
+    /**
+     * Prints the outbound queue depths of all the connections to stderr.
+     */
+    private static void printMetrics( Collection<ChatConnection> connections ) {
+        int queued = 0, maxDepth = 0;
+        long dropped = 0;
+        for ( ChatConnection connection : connections ) {
+            if ( connection.getQueue( ) != null ) {
+                queued += connection.getQueue( ).depth( );
+                maxDepth = Math.max( maxDepth, connection.getQueue( ).maxDepth( ) );
+                dropped += connection.getQueue( ).dropped( );
+            }
+        }
+        System.err.println( "clients=" + connections.size( ) + " queued=" + queued +
+                            " maxDepth=" + maxDepth + " dropped=" + dropped );
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,420 @@
+/**
+ * Bridges room traffic between the servers of a chat cluster, so a client
+ * can connect to any server and still talk to the clients of the others.
+ *
+ * Every server listens for bridges on -Dchat.cluster.port and dials the
+ * servers listed in -Dchat.cluster.peers (host:port, comma separated).
+ * A server sends the messages of its own clients over the links it
+ * dialed and reads the other servers' messages from the links they
+ * dialed, so in a full mesh, where everybody lists everybody, every
+ * message crosses every link once. A link that breaks is dialed again
+ * with backoff, and what was queued for it meanwhile is dropped once the
+ * queue (-Dchat.cluster.queue messages, 65536 by default) is full. Frames
+ * are only counted as sent once flushed; the ones written since the last
+ * flush are written again on the next link, and a receiver drops any copy
+ * that made it across before the break as a duplicate. There are no
+ * acknowledgements, so frames the network loses after a flush are lost.
+ *
+ * With -Dchat.cluster.relay=true a server also passes the messages it
+ * reads on to the servers it dialed, so a cluster can be a chain or a
+ * tree instead of a full mesh. Every message has an id, its origin
+ * server and a sequence number, and a server drops the ids it has seen
+ * (the last -Dchat.cluster.dedup of them, 65536 by default), so relayed
+ * copies and cycles never show up twice.
+ *
+ * Every bridge starts with a hello (int "CHSB", byte version) and then
+ * carries frames:
+ *
+ *   varint length      number of bytes that follow
+ *   long   origin      the server the message started at
+ *   varint sequence    the message's number at its origin
+ *   varint, UTF-8      the room
+ *   varint, UTF-8      the message, with its sender's name
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.net.*;                 // for ServerSocket, Socket
+import java.io.*;                  // for streams, IOException
+import java.nio.*;                 // for ByteBuffer
+import java.nio.charset.*;         // for StandardCharsets
+import java.util.*;                // for List, LinkedHashMap
+import java.util.concurrent.*;     // for LinkedBlockingQueue, ExecutorService
+import java.util.concurrent.atomic.*; // for AtomicLong
+import java.util.function.*;       // for Consumer
+
+public class ClusterBridge {
+    private static final int MAGIC = 0x43485342;  // "CHSB"
+    private static final int VERSION = 1;         // version of the hello
+    private static final int MAX_FRAME = 1 << 20; // refuse frames bigger than 1 MB
+    private static final long MAX_BACKOFF_MS = 2000; // longest wait between dials
+    private static final int FLUSH_BYTES = 1 << 16;  // flush at least this often
+
+    private int port;                      // where other servers dial this one
+    private String[] peers;                // the servers this one dials, as host:port
+    private boolean relay;                 // whether bridged messages are passed on
+    private long origin;                   // this server's id
+    private AtomicLong sequence;           // the number of the next local message
+    private List<LinkedBlockingQueue<byte[]>> outboxes; // frames for every dialed server
+    private Map<Id, Boolean> seen;         // the ids of the latest messages, oldest first
+    private Consumer<Message> deliver;     // hands bridged messages to the rooms
+    private ExecutorService threads;       // dialers, the acceptor and readers
+    private AtomicLong sent;               // frames flushed to other servers
+    private AtomicLong received;           // new messages read from other servers
+    private AtomicLong duplicates;         // messages read again and dropped
+    private AtomicLong dropped;            // frames dropped because a queue was full
+
+    /**
+     * A message that crossed a bridge.
+     */
+    public static class Message {
+        public long origin;    // the server the message started at
+        public long sequence;  // the message's number at its origin
+        public String room;    // the room it was sent to
+        public String text;    // the message, with its sender's name
+    }
+
+    /**
+     * The id of a message, which is unique in the cluster.
+     */
+    private static class Id {
+        private long origin;   // the server the message started at
+        private long sequence; // the message's number at its origin
+
+        Id(long newOrigin, long newSequence){
+            origin = newOrigin;
+            sequence = newSequence;
+        }
+
+        public boolean equals(Object other){
+            return other instanceof Id && ((Id) other).origin == origin
+                    && ((Id) other).sequence == sequence;
+        }
+
+        public int hashCode(){
+            return Long.hashCode(origin * 31 + sequence);
+        }
+    }
+
+    /**
+     * @param newPort  where other servers dial this one
+     * @param newPeers the servers to dial, as host:port
+     */
+    public ClusterBridge(int newPort, String[] newPeers){
+        port = newPort;
+        peers = newPeers;
+        relay = Boolean.getBoolean("chat.cluster.relay");
+        origin = new Random().nextLong();
+        sequence = new AtomicLong();
+        outboxes = new ArrayList<LinkedBlockingQueue<byte[]>>();
+        int capacity = Integer.getInteger("chat.cluster.queue", 65536);
+        for(int i = 0; i < peers.length; i++){
+            outboxes.add(new LinkedBlockingQueue<byte[]>(capacity));
+        }
+        int remembered = Integer.getInteger("chat.cluster.dedup", 65536);
+        seen = new LinkedHashMap<Id, Boolean>(){
+            protected boolean removeEldestEntry(Map.Entry<Id, Boolean> eldest){
+                return size() > remembered;
+            }
+        };
+        threads = VirtualThreads.newPerTaskExecutor();
+        sent = new AtomicLong();
+        received = new AtomicLong();
+        duplicates = new AtomicLong();
+        dropped = new AtomicLong();
+    }
+
+    /**
+     * @return the bridge configured by the chat.cluster.port and
+     *         chat.cluster.peers system properties, or null if this server
+     *         is not in a cluster.
+     */
+    public static ClusterBridge fromProperties(){
+        Integer port = Integer.getInteger("chat.cluster.port");
+        if(port == null){
+            return null;
+        }
+        String list = System.getProperty("chat.cluster.peers", "").trim();
+        return new ClusterBridge(port, list.isEmpty() ? new String[0] : list.split(","));
+    }
+
+    /**
+     * Starts listening for and dialing the other servers.
+     *
+     * @param newDeliver called, from the bridge's threads, with every
+     *                   message read from another server for the first time
+     */
+    public void start(Consumer<Message> newDeliver) throws IOException {
+        deliver = newDeliver;
+        ServerSocket server = new ServerSocket(port);
+        threads.execute(() -> accept(server));
+        for(int i = 0; i < peers.length; i++){
+            int peer = i;
+            threads.execute(() -> dial(peer));
+        }
+    }
+
+    /**
+     * Sends a message of a local client to the other servers. Never blocks.
+     */
+    public void publish(String room, String text){
+        Message message = new Message();
+        message.origin = origin;
+        message.sequence = sequence.getAndIncrement();
+        message.room = room;
+        message.text = text;
+        firstTime(message); // so a relayed copy that comes back is dropped
+        send(encode(message));
+    }
+
+    /**
+     * Sends a message of a local client to the other servers, given as the
+     * UTF-8 payload of a frame, so it is copied without being decoded.
+     * Never blocks.
+     *
+     * @param frame  the frame, whose position and limit are untouched
+     * @param header the number of bytes before the payload
+     */
+    public void publish(String room, ByteBuffer frame, int header){
+        Message message = new Message();
+        message.origin = origin;
+        message.sequence = sequence.getAndIncrement();
+        message.room = room;
+        firstTime(message); // so a relayed copy that comes back is dropped
+
+        byte[] text = new byte[frame.remaining() - header];
+        frame.duplicate().position(frame.position() + header).get(text);
+        send(encode(message, text));
+    }
+
+    /**
+     * Queues a frame for every dialed server.
+     */
+    private void send(byte[] frame){
+        for(LinkedBlockingQueue<byte[]> outbox : outboxes){
+            if(!outbox.offer(frame)){
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return whether a message's id is new, remembering it.
+     */
+    private boolean firstTime(Message message){
+        Id id = new Id(message.origin, message.sequence);
+        synchronized(seen){
+            return seen.put(id, Boolean.TRUE) == null;
+        }
+    }
+
+    /**
+     * The body of a dialer. Keeps a link to one server up and writes the
+     * frames queued for it, flushing whenever the queue runs dry or
+     * FLUSH_BYTES are buffered.
+     */
+    private void dial(int peer){
+        String host = HostPort.hostOf(peers[peer].trim());
+        int peerPort = HostPort.portOf(peers[peer].trim(), port);
+        LinkedBlockingQueue<byte[]> outbox = outboxes.get(peer);
+        long wait = 50;
+        List<byte[]> unflushed = new ArrayList<byte[]>(); // written since the last flush
+        int buffered = 0; // bytes in unflushed
+        while(true){
+            try(Socket socket = new Socket(host, peerPort)){
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.flush();
+                wait = 50;
+
+                // the last link may have lost these
+                for(byte[] frame : unflushed){
+                    out.write(frame);
+                }
+
+                while(true){
+                    if(buffered >= FLUSH_BYTES || (buffered > 0 && outbox.isEmpty())){
+                        out.flush();
+                        sent.addAndGet(unflushed.size());
+                        unflushed.clear();
+                        buffered = 0;
+                        continue;
+                    }
+                    byte[] frame = outbox.take();
+                    unflushed.add(frame);
+                    buffered += frame.length;
+                    out.write(frame);
+                }
+            }catch(IOException e){
+                // dial again below
+            }catch(InterruptedException e){
+                return;
+            }
+
+            try{
+                Thread.sleep(wait);
+            }catch(InterruptedException e){
+                return;
+            }
+            wait = Math.min(wait * 2, MAX_BACKOFF_MS);
+        }
+    }
+
+    /**
+     * The body of the acceptor. Gives every server that dials in a reader.
+     */
+    private void accept(ServerSocket server){
+        try{
+            while(true){
+                Socket socket = server.accept();
+                threads.execute(() -> read(socket));
+            }
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The body of a reader. Delivers every new message from one server,
+     * and passes it on if this server relays.
+     */
+    private void read(Socket socket){
+        try{
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            if(in.readInt() != MAGIC || in.readUnsignedByte() != VERSION){
+                throw new StreamCorruptedException("not a chat server bridge");
+            }
+            while(true){
+                int length = readVarint(in);
+                if(length < 0 || length > MAX_FRAME){
+                    throw new StreamCorruptedException("bad frame length " + length);
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                Message message = decode(body);
+
+                if(!firstTime(message)){
+                    duplicates.incrementAndGet();
+                    continue;
+                }
+                received.incrementAndGet();
+                if(relay){
+                    send(encode(message));
+                }
+                deliver.accept(message);
+            }
+        }catch(IOException e){
+            // the other server left; it dials again when it is back
+        }finally{
+            try{
+                socket.close();
+            }catch(IOException e){
+                // closing anyway
+            }
+        }
+    }
+
+    /**
+     * @return a one line summary of the bridge for logs.
+     */
+    public String metrics(){
+        return "bridge sent=" + sent.get() + " received=" + received.get() +
+               " duplicates=" + duplicates.get() + " dropped=" + dropped.get();
+    }
+
+    /**
+     * @return a message as a frame, length prefix included.
+     */
+    private static byte[] encode(Message message){
+        return encode(message, message.text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param text the message's text in UTF-8, used instead of message.text
+     * @return a message as a frame, length prefix included.
+     */
+    private static byte[] encode(Message message, byte[] text){
+        try{
+            ByteArrayOutputStream body = new ByteArrayOutputStream(64 + text.length);
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeLong(message.origin);
+            writeVarint(out, message.sequence);
+            writeString(out, message.room);
+            writeVarint(out, text.length);
+            out.write(text);
+
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(body.size() + 5);
+            writeVarint(new DataOutputStream(frame), body.size());
+            body.writeTo(frame);
+            return frame.toByteArray();
+        }catch(IOException e){
+            throw new UncheckedIOException(e); // not thrown by byte array streams
+        }
+    }
+
+    /**
+     * @return the message in a frame body.
+     */
+    private static Message decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        Message message = new Message();
+        message.origin = in.readLong();
+        message.sequence = readVarintLong(in);
+        message.room = readString(in);
+        message.text = readString(in);
+        return message;
+    }
+
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readVarint(in);
+        if(length < 0 || length > MAX_FRAME){
+            throw new StreamCorruptedException("bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint. Small values take one byte.
+     */
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while((value & ~0x7FL) != 0){
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        long value = readVarintLong(in);
+        if(value > Integer.MAX_VALUE){
+            throw new StreamCorruptedException("varint too big");
+        }
+        return (int) value;
+    }
+
+    private static long readVarintLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7){
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if(b >= 0){
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("varint too long");
+    }
+
+}
@@ -0,0 +1,400 @@
+/**
+ * The two framings spoken between chat clients and servers, and the pool
+ * of buffers used to parse them.
+ *
+ *   legacy   writeUTF: a two byte length and modified UTF-8, at most 64 KB
+ *   framed   a four byte length and standard UTF-8, at most
+ *            -Dchat.frame.max bytes (16 MB by default)
+ *
+ * A client that wants the framed protocol starts the connection with the
+ * three byte hello 0xCAFE, VERSION, and the server answers with the same
+ * three bytes before anything else. A connection that does not start with
+ * 0xCAFE is a legacy client and the first two bytes are the length of its
+ * name, so old clients keep working. (A legacy name of exactly 0xCAFE
+ * bytes would be mistaken for the hello, which is far beyond any name.)
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.nio.*;                 // for ByteBuffer
+import java.util.*;                // for Arrays
+import java.util.concurrent.*;     // for ConcurrentLinkedQueue
+
+public class FrameCodec {
+    public static final int MAGIC = 0xCAFE;   // the first two bytes of the hello
+    public static final int VERSION = 1;      // the version of the framed protocol
+    public static final int MAX_FRAME = Integer.getInteger("chat.frame.max", 16 << 20);
+
+    private static final int MAX_LEGACY = 0xFFFF; // longest writeUTF payload
+    private static final int MIN_POOLED = 1 << 10; // smallest pooled buffer
+    private static final int MAX_POOLED = 1 << 20; // bigger buffers are not kept
+    private static final int PER_SIZE = 64;   // most buffers kept of each size
+
+    // pooled heap buffers by size, 1 KB, 2 KB, ... 1 MB
+    private static final ConcurrentLinkedQueue<ByteBuffer>[] pool = newPool();
+
+    /**
+     * A message to send to clients of both framings, encoded for each
+     * framing the first time a client of that framing needs it.
+     */
+    public static class Encoded {
+        private String message;    // the message, or null while it is only bytes
+        private byte[] legacy;     // the writeUTF frame, once encoded
+        private byte[] framed;     // the framed frame, once encoded
+        private boolean portable;  // whether the payload is the same in both framings
+
+        public Encoded(String newMessage){
+            message = newMessage;
+            portable = false;
+        }
+
+        /**
+         * Builds a message from a prefix, such as the sender's name, and a
+         * payload a client sent, copying their bytes once into a frame of
+         * the sender's framing without decoding them. The other framing is
+         * made from that frame if a client needs it.
+         *
+         * @param prefix   the prefix in the sender's framing, without a header
+         * @param payload  the payload as it was received
+         * @param isFramed the sender's framing
+         */
+        public static Encoded forward(byte[] prefix, FrameParser.Frame payload, boolean isFramed){
+            Encoded encoded = new Encoded(null);
+            ByteBuffer frame = join(prefix, payload, isFramed, null);
+            if(frame == null){
+                // too long for the sender's framing, so it only fits the other one
+                encoded.message = decode(prefix, 0, prefix.length) + payload.toString();
+            }else if(isFramed){
+                encoded.framed = frame.array();
+            }else{
+                encoded.legacy = frame.array();
+            }
+            encoded.portable = isPortable(prefix, 0, prefix.length) && payload.isPortable();
+            return encoded;
+        }
+
+        /**
+         * @return the frame for a framing, or null if the message is too
+         *         long for it.
+         */
+        public byte[] bytes(boolean isFramed){
+            if(message == null && (isFramed ? framed : legacy) == null){
+                // only the other framing's frame exists, so make this one from it
+                byte[] other = isFramed ? legacy : framed;
+                int header = isFramed ? 2 : 4;
+                int length = other.length - header;
+                if(!portable){
+                    message = decode(other, header, length);
+                }else if(length <= (isFramed ? MAX_FRAME : MAX_LEGACY)){
+                    ByteBuffer frame = ByteBuffer.allocate(length + 6 - header);
+                    if(isFramed){
+                        frame.putInt(length);
+                    }else{
+                        frame.putShort((short) length);
+                    }
+                    frame.put(other, header, length);
+                    if(isFramed){
+                        framed = frame.array();
+                    }else{
+                        legacy = frame.array();
+                    }
+                }
+            }
+            if(message == null){
+                return isFramed ? framed : legacy;
+            }
+            if(isFramed){
+                if(framed == null){
+                    framed = toBytes(message, true);
+                }
+                return framed;
+            }
+            if(legacy == null){
+                legacy = toBytes(message, false);
+            }
+            return legacy;
+        }
+    }
+
+    /**
+     * @return the hello a framed client sends, which is also the server's answer.
+     */
+    public static byte[] hello(){
+        return new byte[] { (byte) (MAGIC >> 8), (byte) MAGIC, (byte) VERSION };
+    }
+
+    /**
+     * Encodes a message as a frame into a buffer.
+     *
+     * @param message the message to encode
+     * @param framed  whether to use the framed protocol instead of writeUTF
+     * @param buffer  a buffer to reuse if it is big enough, or null
+     * @return a buffer flipped for reading that holds the frame, buffer
+     *         itself if it was big enough, or null if the message is too
+     *         long for the framing.
+     */
+    public static ByteBuffer encode(String message, boolean framed, ByteBuffer buffer){
+        int length = framed ? utf8Length(message) : modifiedLength(message);
+        if(length > (framed ? MAX_FRAME : MAX_LEGACY)){
+            return null;
+        }
+
+        int size = length + (framed ? 4 : 2);
+        if(buffer == null || buffer.capacity() < size){
+            buffer = ByteBuffer.allocate(size);
+        }
+        buffer.clear();
+        if(framed){
+            buffer.putInt(length);
+        }else{
+            buffer.putShort((short) length);
+        }
+        for(int i = 0; i < message.length(); i++){
+            char c = message.charAt(i);
+            if(c < 0x80 && (framed || c != 0)){
+                buffer.put((byte) c);
+            }else if(c < 0x800){
+                // modified UTF-8 writes NUL as two bytes too
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }else if(framed && Character.isSurrogate(c)){
+                if(Character.isHighSurrogate(c) && i + 1 < message.length()
+                        && Character.isLowSurrogate(message.charAt(i + 1))){
+                    int code = Character.toCodePoint(c, message.charAt(++i));
+                    buffer.put((byte) (0xF0 | (code >> 18)));
+                    buffer.put((byte) (0x80 | ((code >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((code >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (code & 0x3F)));
+                }else{
+                    buffer.put((byte) '?'); // unpaired surrogate, like String.getBytes
+                }
+            }else{
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Joins a prefix and a received payload into a frame, copying their
+     * bytes once and decoding neither. Both must be in the given framing,
+     * or portable (see isPortable()).
+     *
+     * @param prefix  the bytes to put in front of the payload, without a header
+     * @param payload the payload as it was received
+     * @param framed  whether to use the framed protocol instead of writeUTF
+     * @param buffer  a buffer to reuse if it is big enough, or null
+     * @return a buffer flipped for reading that holds the frame, buffer
+     *         itself if it was big enough, or null if the message is too
+     *         long for the framing.
+     */
+    public static ByteBuffer join(byte[] prefix, FrameParser.Frame payload, boolean framed,
+                                  ByteBuffer buffer){
+        int length = prefix.length + payload.length();
+        if(length > (framed ? MAX_FRAME : MAX_LEGACY)){
+            return null;
+        }
+
+        int size = length + (framed ? 4 : 2);
+        if(buffer == null || buffer.capacity() < size){
+            buffer = ByteBuffer.allocate(size);
+        }
+        buffer.clear();
+        if(framed){
+            buffer.putInt(length);
+        }else{
+            buffer.putShort((short) length);
+        }
+        buffer.put(prefix);
+        payload.copyTo(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return the payload bytes of a message in a framing, without a header.
+     */
+    public static byte[] payload(String message, boolean framed){
+        ByteBuffer frame = encode(message, framed, null);
+        int header = framed ? 4 : 2;
+        return (frame == null) ? null : Arrays.copyOfRange(frame.array(), header, frame.limit());
+    }
+
+    /**
+     * @return whether bytes of a payload mean the same in both framings.
+     *         They only differ in how they write NUL and characters outside
+     *         the BMP, so bytes without NUL, 0xC0 (a two byte NUL), 0xED
+     *         (surrogates, and some Hangul) or four byte sequences are
+     *         passed between the framings as they are.
+     */
+    public static boolean isPortable(byte[] bytes, int offset, int length){
+        for(int i = offset; i < offset + length; i++){
+            int b = bytes[i] & 0xFF;
+            if(b == 0 || b == 0xC0 || b == 0xED || b >= 0xF0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a message as a frame in a new array, or null if the message
+     *         is too long for the framing.
+     */
+    public static byte[] toBytes(String message, boolean framed){
+        // with no buffer to reuse, encode() allocates exactly the frame
+        ByteBuffer frame = encode(message, framed, null);
+        return (frame == null) ? null : frame.array();
+    }
+
+    /**
+     * Decodes a payload of either framing. UTF-8 and modified UTF-8 only
+     * differ in how they write NUL and characters outside the BMP, and this
+     * reads both ways. Malformed bytes become U+FFFD.
+     */
+    public static String decode(byte[] bytes, int offset, int length){
+        char[] chars = new char[length];
+        int count = 0;
+        int end = offset + length;
+        int i = offset;
+        while(i < end){
+            int b = bytes[i] & 0xFF;
+            if(b < 0x80){
+                chars[count++] = (char) b;
+                i += 1;
+            }else if((b & 0xE0) == 0xC0 && i + 1 < end && (bytes[i + 1] & 0xC0) == 0x80){
+                chars[count++] = (char) (((b & 0x1F) << 6) | (bytes[i + 1] & 0x3F));
+                i += 2;
+            }else if((b & 0xF0) == 0xE0 && i + 2 < end && (bytes[i + 1] & 0xC0) == 0x80
+                    && (bytes[i + 2] & 0xC0) == 0x80){
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((bytes[i + 1] & 0x3F) << 6)
+                                         | (bytes[i + 2] & 0x3F));
+                i += 3;
+            }else if((b & 0xF8) == 0xF0 && i + 3 < end && (bytes[i + 1] & 0xC0) == 0x80
+                    && (bytes[i + 2] & 0xC0) == 0x80 && (bytes[i + 3] & 0xC0) == 0x80){
+                int code = ((b & 0x07) << 18) | ((bytes[i + 1] & 0x3F) << 12)
+                           | ((bytes[i + 2] & 0x3F) << 6) | (bytes[i + 3] & 0x3F);
+                chars[count++] = Character.highSurrogate(code);
+                chars[count++] = Character.lowSurrogate(code);
+                i += 4;
+            }else{
+                chars[count++] = '\uFFFD';
+                i += 1;
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Converts a framed frame, as kept in a ChatLog, to a writeUTF frame.
+     * Only the header changes unless the payload is not portable.
+     *
+     * @return the writeUTF frame, or null if the message is too long for it.
+     */
+    public static byte[] framedToLegacy(byte[] frame){
+        int length = frame.length - 4;
+        if(!isPortable(frame, 4, length)){
+            return toBytes(decode(frame, 4, length), false);
+        }
+        if(length > MAX_LEGACY){
+            return null;
+        }
+        ByteBuffer legacy = ByteBuffer.allocate(2 + length);
+        legacy.putShort((short) length);
+        legacy.put(frame, 4, length);
+        return legacy.array();
+    }
+
+    /**
+     * @return a cleared heap buffer of at least size bytes, from the pool
+     *         if one is free.
+     */
+    public static ByteBuffer acquire(int size){
+        int index = sizeClass(size);
+        if(index >= 0){
+            ByteBuffer buffer = pool[index].poll();
+            if(buffer != null){
+                buffer.clear();
+                return buffer;
+            }
+            return ByteBuffer.allocate(MIN_POOLED << index);
+        }
+        return ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Gives a buffer from acquire() back to the pool. It must not be used
+     * afterwards.
+     */
+    public static void release(ByteBuffer buffer){
+        int index = sizeClass(buffer.capacity());
+        if(index >= 0 && (MIN_POOLED << index) == buffer.capacity() && pool[index].size() < PER_SIZE){
+            pool[index].add(buffer);
+        }
+    }
+
+    /**
+     * @return the pool index of the smallest pooled size that holds size
+     *         bytes, or -1 if buffers that big are not pooled.
+     */
+    private static int sizeClass(int size){
+        if(size > MAX_POOLED){
+            return -1;
+        }
+        int index = 0;
+        while((MIN_POOLED << index) < size){
+            index++;
+        }
+        return index;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // no generic array creation
+    private static ConcurrentLinkedQueue<ByteBuffer>[] newPool(){
+        ConcurrentLinkedQueue<ByteBuffer>[] queues = new ConcurrentLinkedQueue[sizeClass(MAX_POOLED) + 1];
+        for(int i = 0; i < queues.length; i++){
+            queues[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+        return queues;
+    }
+
+    /**
+     * @return the number of bytes of a string in standard UTF-8.
+     */
+    private static int utf8Length(String message){
+        int length = 0;
+        for(int i = 0; i < message.length(); i++){
+            char c = message.charAt(i);
+            if(c < 0x80){
+                length += 1;
+            }else if(c < 0x800){
+                length += 2;
+            }else if(Character.isHighSurrogate(c) && i + 1 < message.length()
+                    && Character.isLowSurrogate(message.charAt(i + 1))){
+                length += 4;
+                i++;
+            }else if(Character.isSurrogate(c)){
+                length += 1;
+            }else{
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return the number of bytes of a string in modified UTF-8.
+     */
+    private static int modifiedLength(String message){
+        int length = 0;
+        for(int i = 0; i < message.length(); i++){
+            char c = message.charAt(i);
+            length += (c != 0 && c < 0x80) ? 1 : (c < 0x800) ? 2 : 3;
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,281 @@
+/**
+ * Parses the frames a chat peer sends, whichever framing it speaks (see
+ * FrameCodec), from as many reads as they take to arrive. It works the
+ * same over a non-blocking channel, where a read may stop anywhere inside
+ * a frame, and over a blocking stream.
+ *
+ * Bytes are read into one pooled buffer, and next() hands out a Frame
+ * that points into it. Nothing is decoded unless the frame is asked for
+ * its text, so a frame that is only passed along, like the messages
+ * ChatEventLoop copies straight into its outgoing buffers, costs no
+ * allocation. A Frame is only valid until the next call to next() or
+ * fill(), or release().
+ *
+ * A server side parser detects the framing from the first bytes: a framed
+ * client starts with the hello, which the parser consumes, and the caller
+ * answers with FrameCodec.hello() (see helloReceived()).
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.io.*;                  // for InputStream, IOException
+import java.nio.*;                 // for ByteBuffer
+import java.nio.channels.*;        // for ReadableByteChannel
+
+public class FrameParser {
+    private static final int INITIAL_BUFFER = 1024; // starting size of the buffer
+
+    private ByteBuffer buffer;     // a pooled heap buffer holding the bytes read
+    private int start;             // where the unparsed bytes start in buffer
+    private int end;               // where the unparsed bytes end in buffer
+    private boolean detect;        // whether the framing is still to be detected
+    private boolean framed;        // whether the peer speaks the framed protocol
+    private boolean hello;         // whether a hello arrived that was not answered yet
+    private Frame frame;           // the frame handed out last, reused
+
+    /**
+     * A parsed frame, pointing into the parser's buffer.
+     */
+    public static class Frame {
+        private byte[] array;      // the parser's buffer
+        private int offset;        // where the payload starts in array
+        private int length;        // the payload's number of bytes
+        private String text;       // the decoded payload, once asked for
+
+        /**
+         * @return the payload, as a read-only view without copying it.
+         */
+        public ByteBuffer payload(){
+            return ByteBuffer.wrap(array, offset, length).asReadOnlyBuffer();
+        }
+
+        /**
+         * @return the payload's number of bytes.
+         */
+        public int length(){
+            return length;
+        }
+
+        /**
+         * @return byte i of the payload.
+         */
+        public byte byteAt(int i){
+            return array[offset + i];
+        }
+
+        /**
+         * Copies the payload into a buffer at its position.
+         */
+        public void copyTo(ByteBuffer target){
+            target.put(array, offset, length);
+        }
+
+        /**
+         * @return whether the payload is the same bytes in both framings
+         *         (see FrameCodec.isPortable()).
+         */
+        public boolean isPortable(){
+            return FrameCodec.isPortable(array, offset, length);
+        }
+
+        /**
+         * @return the payload as text, decoded the first time it is asked for.
+         */
+        public String toString(){
+            if(text == null){
+                text = FrameCodec.decode(array, offset, length);
+            }
+            return text;
+        }
+    }
+
+    /**
+     * Creates a parser for a peer that speaks a known framing.
+     *
+     * @param newFramed whether the peer speaks the framed protocol
+     */
+    public FrameParser(boolean newFramed){
+        this(newFramed, false);
+    }
+
+    /**
+     * @return a parser for a server, which detects the framing of the
+     *         client from its first bytes.
+     */
+    public static FrameParser detecting(){
+        return new FrameParser(false, true);
+    }
+
+    private FrameParser(boolean newFramed, boolean newDetect){
+        buffer = FrameCodec.acquire(INITIAL_BUFFER);
+        start = 0;
+        end = 0;
+        framed = newFramed;
+        detect = newDetect;
+        hello = false;
+        frame = new Frame();
+    }
+
+    /**
+     * Reads whatever the channel has available. Never blocks on a
+     * non-blocking channel.
+     *
+     * @return false if the peer closed the connection.
+     */
+    public boolean fill(ReadableByteChannel channel) throws IOException {
+        makeRoom();
+        buffer.limit(buffer.capacity()).position(end);
+        int read = channel.read(buffer);
+        end = buffer.position();
+        return read >= 0;
+    }
+
+    /**
+     * Reads from a stream, blocking until at least one byte arrives.
+     *
+     * @return false if the peer closed the connection.
+     */
+    public boolean fill(InputStream in) throws IOException {
+        makeRoom();
+        int read = in.read(buffer.array(), end, buffer.capacity() - end);
+        if(read < 0){
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    /**
+     * Parses the next complete frame out of the bytes read so far.
+     *
+     * @return the next frame, or null if none arrived completely yet.
+     * @throws StreamCorruptedException if the peer sent a frame that is too
+     *                                  big or an unknown hello
+     */
+    public Frame next() throws IOException {
+        byte[] bytes = buffer.array();
+        if(detect){
+            if(end - start < 2){
+                return null;
+            }
+            if(getShort(bytes, start) == FrameCodec.MAGIC){
+                if(end - start < 3){
+                    return null;
+                }
+                int version = bytes[start + 2] & 0xFF;
+                if(version != FrameCodec.VERSION){
+                    throw new StreamCorruptedException("unknown protocol version " + version);
+                }
+                start += 3;
+                framed = true;
+                hello = true;
+            }
+            detect = false;
+        }
+
+        int header = framed ? 4 : 2;
+        if(end - start < header){
+            return null;
+        }
+        int length = framed ? getInt(bytes, start) : getShort(bytes, start);
+        if(length < 0 || length > FrameCodec.MAX_FRAME){
+            throw new StreamCorruptedException("bad frame length " + length);
+        }
+        if(end - start < header + length){
+            // make sure a whole frame fits once the rest arrives
+            if(buffer.capacity() - start < header + length){
+                grow(header + length);
+            }
+            return null;
+        }
+
+        frame.array = bytes;
+        frame.offset = start + header;
+        frame.length = length;
+        frame.text = null;
+        start += header + length;
+        return frame;
+    }
+
+    /**
+     * @return whether a complete frame was read and not parsed yet.
+     */
+    public boolean hasFrame(){
+        int header = framed ? 4 : 2;
+        if(detect || end - start < header){
+            return false;
+        }
+        byte[] bytes = buffer.array();
+        int length = framed ? getInt(bytes, start) : getShort(bytes, start);
+        return length >= 0 && end - start >= header + length;
+    }
+
+    /**
+     * @return whether the peer sent the framed protocol's hello since the
+     *         last call, which the caller must answer.
+     */
+    public boolean helloReceived(){
+        boolean result = hello;
+        hello = false;
+        return result;
+    }
+
+    /**
+     * @return whether the peer speaks the framed protocol.
+     */
+    public boolean isFramed(){
+        return framed;
+    }
+
+    /**
+     * Gives the buffer back to the pool. The parser must not be used afterwards.
+     */
+    public void release(){
+        if(buffer != null){
+            FrameCodec.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Moves the unparsed bytes to the front of the buffer, and doubles the
+     * buffer if it is still full.
+     */
+    private void makeRoom(){
+        if(start == end){
+            start = 0;
+            end = 0;
+        }
+        if(end == buffer.capacity()){
+            if(start > 0){
+                System.arraycopy(buffer.array(), start, buffer.array(), 0, end - start);
+                end -= start;
+                start = 0;
+            }else{
+                grow(buffer.capacity() * 2);
+            }
+        }
+    }
+
+    /**
+     * Moves the unparsed bytes into a pooled buffer of at least capacity bytes.
+     */
+    private void grow(int capacity){
+        ByteBuffer bigger = FrameCodec.acquire(capacity);
+        System.arraycopy(buffer.array(), start, bigger.array(), 0, end - start);
+        FrameCodec.release(buffer);
+        buffer = bigger;
+        end -= start;
+        start = 0;
+    }
+
+    private static int getShort(byte[] bytes, int at){
+        return ((bytes[at] & 0xFF) << 8) | (bytes[at + 1] & 0xFF);
+    }
+
+    private static int getInt(byte[] bytes, int at){
+        return (getShort(bytes, at) << 16) | getShort(bytes, at + 2);
+    }
+
+}
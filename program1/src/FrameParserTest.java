@@ -0,0 +1,212 @@
+/**
+ * Checks of FrameParser over both framings. Run it with "java FrameParserTest";
+ * it prints every failed check and exits with status 1 if any failed.
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.io.*;                  // for ByteArrayInputStream, StreamCorruptedException
+import java.nio.*;                 // for ByteBuffer
+import java.util.*;                // for Arrays, List
+
+public class FrameParserTest {
+    private static final int[] CHUNKS = {1, 3, 7, 4096}; // bytes a read returns at most
+
+    // NUL and characters outside the BMP are where the two framings differ
+    private static final String[] MESSAGES = {
+        "alice", "hello", "", "caf\u00e9", "nul\u0000byte", "emoji \ud83d\ude00", "/join room",
+        repeat("long message ", 2000)
+    };
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException {
+        for(int chunk : CHUNKS){
+            legacyFrames(chunk);
+            framedFrames(chunk);
+            framedFramesWithoutDetecting(chunk);
+        }
+        unknownVersion();
+        frameTooLong();
+
+        if(failures > 0){
+            System.err.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("all checks passed");
+    }
+
+    /**
+     * A detecting parser reads writeUTF frames, with their headers split
+     * across reads, as a legacy client sends them.
+     */
+    private static void legacyFrames(int chunk) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for(String message : MESSAGES){
+            bytes.write(FrameCodec.toBytes(message, false));
+        }
+
+        FrameParser parser = FrameParser.detecting();
+        List<String> received = parse(parser, bytes.toByteArray(), chunk, false, "legacy/" + chunk);
+        check("legacy/" + chunk + " messages", Arrays.asList(MESSAGES), received);
+        check("legacy/" + chunk + " framing", false, parser.isFramed());
+        parser.release();
+    }
+
+    /**
+     * A detecting parser sees the hello, switches to four byte lengths and
+     * reports the hello exactly once, so the server answers it once.
+     */
+    private static void framedFrames(int chunk) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(FrameCodec.hello());
+        for(String message : MESSAGES){
+            bytes.write(FrameCodec.toBytes(message, true));
+        }
+
+        FrameParser parser = FrameParser.detecting();
+        List<String> received = parse(parser, bytes.toByteArray(), chunk, true, "framed/" + chunk);
+        check("framed/" + chunk + " messages", Arrays.asList(MESSAGES), received);
+        check("framed/" + chunk + " framing", true, parser.isFramed());
+        parser.release();
+    }
+
+    /**
+     * A client's parser, which is told the framing, reads framed frames
+     * that come without a hello.
+     */
+    private static void framedFramesWithoutDetecting(int chunk) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for(String message : MESSAGES){
+            bytes.write(FrameCodec.toBytes(message, true));
+        }
+
+        FrameParser parser = new FrameParser(true);
+        List<String> received = parse(parser, bytes.toByteArray(), chunk, false, "client/" + chunk);
+        check("client/" + chunk + " messages", Arrays.asList(MESSAGES), received);
+        parser.release();
+    }
+
+    /**
+     * A hello with a version this server does not speak is rejected.
+     */
+    private static void unknownVersion() throws IOException {
+        byte[] hello = FrameCodec.hello();
+        hello[2] = (byte) (FrameCodec.VERSION + 1);
+        expectCorrupted("unknown version", FrameParser.detecting(), hello);
+    }
+
+    /**
+     * A length above MAX_FRAME is rejected as soon as its header arrives,
+     * before any buffer is grown for it.
+     */
+    private static void frameTooLong() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(7);
+        header.put(FrameCodec.hello());
+        header.putInt(FrameCodec.MAX_FRAME + 1);
+        expectCorrupted("length above MAX_FRAME", FrameParser.detecting(), header.array());
+
+        header = ByteBuffer.allocate(4);
+        header.putInt(-1);
+        expectCorrupted("negative length", new FrameParser(true), header.array());
+    }
+
+    /**
+     * Feeds bytes to a parser at most chunk bytes per read, and parses
+     * every frame as soon as it is complete.
+     *
+     * @param hello whether the parser must report a hello before the first frame
+     * @return the text of every frame.
+     */
+    private static List<String> parse(FrameParser parser, byte[] bytes, int chunk,
+                                      boolean hello, String name) throws IOException {
+        InputStream in = new ChunkedStream(bytes, chunk);
+        List<String> received = new ArrayList<String>();
+        int hellos = 0;
+        do{
+            FrameParser.Frame frame;
+            while((frame = parser.next()) != null){
+                checkPayload(name, frame, parser.isFramed());
+                received.add(frame.toString());
+            }
+            if(parser.helloReceived()){
+                hellos++;
+            }
+        }while(parser.fill(in));
+
+        check(name + " hellos", hello ? 1 : 0, hellos);
+        return received;
+    }
+
+    /**
+     * The bytes a frame hands out are the payload as it was encoded.
+     */
+    private static void checkPayload(String name, FrameParser.Frame frame, boolean framed){
+        byte[] expected = FrameCodec.payload(frame.toString(), framed);
+        ByteBuffer copy = ByteBuffer.allocate(frame.length());
+        frame.copyTo(copy);
+        if(!Arrays.equals(expected, copy.array())){
+            fail(name + ": payload of \"" + abbreviate(frame.toString()) + "\" differs from its encoding");
+        }
+    }
+
+    private static void expectCorrupted(String name, FrameParser parser, byte[] bytes) throws IOException {
+        InputStream in = new ChunkedStream(bytes, 1);
+        try{
+            while(parser.fill(in)){
+                if(parser.next() != null){
+                    fail(name + ": parsed a frame");
+                    return;
+                }
+            }
+            fail(name + ": not rejected");
+        }catch(StreamCorruptedException e){
+            // rejected, as it should be
+        }finally{
+            parser.release();
+        }
+    }
+
+    private static void check(String name, Object expected, Object actual){
+        if(!expected.equals(actual)){
+            fail(name + ": expected " + abbreviate(String.valueOf(expected)) + ", got "
+                    + abbreviate(String.valueOf(actual)));
+        }
+    }
+
+    private static void fail(String message){
+        System.err.println("FAIL " + message);
+        failures++;
+    }
+
+    private static String abbreviate(String text){
+        return (text.length() > 200) ? text.substring(0, 200) + "..." : text;
+    }
+
+    private static String repeat(String text, int count){
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < count; i++){
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A stream that returns at most chunk bytes per read, like a socket
+     * that delivers a few bytes at a time.
+     */
+    private static class ChunkedStream extends ByteArrayInputStream {
+        private int chunk;
+
+        ChunkedStream(byte[] bytes, int newChunk){
+            super(bytes);
+            chunk = newChunk;
+        }
+
+        public synchronized int read(byte[] target, int offset, int length){
+            return super.read(target, offset, Math.min(length, chunk));
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * A consistent hash ring that assigns chat rooms to event loop shards.
+ * Every shard owns many points on the ring, and a room belongs to the
+ * shard owning the first point at or after the room's hash. Adding a
+ * shard only moves the rooms that land on its new points, and the many
+ * points per shard spread the rooms evenly.
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.util.*; // for TreeMap, Map
+
+public class HashRing {
+    private static final int POINTS = 128; // points per shard
+
+    private TreeMap<Integer, Integer> ring; // point on the ring -> shard
+
+    /**
+     * @param shards the number of shards, numbered 0 through shards - 1
+     */
+    public HashRing(int shards){
+        ring = new TreeMap<Integer, Integer>();
+        for(int shard = 0; shard < shards; shard++){
+            for(int point = 0; point < POINTS; point++){
+                ring.put(hash("shard-" + shard + "#" + point), shard);
+            }
+        }
+    }
+
+    /**
+     * @return the shard that owns a key.
+     */
+    public int shardOf(String key){
+        Map.Entry<Integer, Integer> owner = ring.ceilingEntry(hash(key));
+        return (owner == null ? ring.firstEntry() : owner).getValue();
+    }
+
+    /**
+     * FNV-1a over the characters, followed by the MurmurHash3 finalizer so
+     * that similar names land far apart on the ring.
+     */
+    private static int hash(String key){
+        int h = 0x811C9DC5;
+        for(int i = 0; i < key.length(); i++){
+            h = (h ^ key.charAt(i)) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+}
@@ -0,0 +1,32 @@
+/**
+ * Parses the host or host:port entries that name other machines, like the
+ * Chat host list and the servers a ClusterBridge dials. An entry with more
+ * than one colon is an IPv6 address without a port.
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+public class HostPort {
+
+    /**
+     * @return the host of a host or host:port entry.
+     */
+    public static String hostOf(String entry){
+        int colon = entry.lastIndexOf(':');
+        return (colon < 0 || entry.indexOf(':') != colon) ? entry : entry.substring(0, colon);
+    }
+
+    /**
+     * @return the port of a host:port entry, or the given port if the entry
+     *         has none.
+     */
+    public static int portOf(String entry, int port){
+        int colon = entry.lastIndexOf(':');
+        if(colon < 0 || entry.indexOf(':') != colon){
+            return port; // no port, or an IPv6 address
+        }
+        return Integer.parseInt(entry.substring(colon + 1));
+    }
+
+}
@@ -0,0 +1,111 @@
+/**
+ * A fixed-size latency histogram in the style of HdrHistogram. Values up to
+ * 127 get their own bucket. Larger values share buckets that are about 1%
+ * wide, so percentiles stay within 1% of the truth at any magnitude, and
+ * recording is one atomic increment that any number of threads can do at
+ * the same time.
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.util.concurrent.atomic.*; // for AtomicLongArray, AtomicLong
+
+public class LatencyHistogram {
+    private static final int SUB_BITS = 7;                  // precision in bits
+    private static final int SUB_COUNT = 1 << SUB_BITS;     // exact buckets
+    private static final int HALF = SUB_COUNT / 2;          // buckets per power of two
+    private static final int BUCKETS = SUB_COUNT + (64 - SUB_BITS) * HALF;
+
+    private AtomicLongArray counts; // number of values recorded in every bucket
+    private AtomicLong total;       // number of values recorded
+    private AtomicLong sum;         // sum of all values recorded
+    private AtomicLong max;         // biggest value recorded
+
+    public LatencyHistogram(){
+        counts = new AtomicLongArray(BUCKETS);
+        total = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    /**
+     * Records one value. Negative values are recorded as zero.
+     */
+    public void record(long value){
+        value = Math.max(0, value);
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return the number of values recorded.
+     */
+    public long count(){
+        return total.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, or 0 if there are none.
+     */
+    public double mean(){
+        long n = total.get();
+        return (n == 0) ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @return the biggest value recorded.
+     */
+    public long max(){
+        return max.get();
+    }
+
+    /**
+     * @param percentile a percentile between 0 and 100
+     * @return the highest value that falls in the same bucket as the value at
+     *         the given percentile, or 0 if nothing was recorded.
+     */
+    public long percentile(double percentile){
+        long n = total.get();
+        if(n == 0){
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += counts.get(i);
+            if(seen >= rank){
+                return Math.min(highest(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return the bucket of a non-negative value.
+     */
+    private static int index(long value){
+        if(value < SUB_COUNT){
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BITS - 1);
+        int sub = (int) (value >>> shift);   // between HALF and SUB_COUNT - 1
+        return SUB_COUNT + (shift - 1) * HALF + (sub - HALF);
+    }
+
+    /**
+     * @return the highest value that falls in the given bucket.
+     */
+    private static long highest(int index){
+        if(index < SUB_COUNT){
+            return index;
+        }
+        int shift = (index - SUB_COUNT) / HALF + 1;
+        long sub = (index - SUB_COUNT) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+}
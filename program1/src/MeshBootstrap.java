@@ -0,0 +1,301 @@
+/**
+ * Connects a Chat node to its peers, all of them at once. Every peer with
+ * a lower rank gets its own connecting task, and the accept loop hands
+ * every accepted socket to a task of its own, so one slow or late host only
+ * delays its own link. The PeerLink hello carries the ranks, so an accepted
+ * connection is identified by what the peer says instead of by reverse DNS.
+ *
+ * A connect that is refused (the peer is not listening yet) is retried
+ * with exponential backoff and jitter, from chat.connect.backoff.ms
+ * (50 by default) up to chat.connect.backoff.max.ms (2000 by default).
+ * The whole mesh must be ready within chat.connect.timeout.ms (120000 by
+ * default).
+ *
+ * A host can be given as host:port, which overrides the common port for
+ * that node, so several nodes can run on one machine.
+ *
+ * connect() links to any set of ranks. fullMesh() gives every other rank,
+ * and tree() gives the neighbors in a k-ary spanning tree, where every
+ * node has at most k + 1 links however big the group grows.
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.net.*;                 // for ServerSocket, Socket
+import java.io.*;                  // for IOException
+import java.util.*;                // for List, ArrayList
+import java.util.concurrent.*;     // for ExecutorService, CountDownLatch
+
+public class MeshBootstrap {
+    private static final int ACCEPT_POLL_MS = 200;   // how often the accept loop checks for the end
+    private static final int HELLO_TIMEOUT_MS = 10000; // how long a peer may take to say hello
+
+    private int port;                  // the port of nodes given without one
+    private int rank;                  // this node's rank
+    private String[] hosts;            // every node, as host or host:port
+    private PeerLink[] links;          // the link to every connected peer
+    private CountDownLatch missing;    // counts the links not yet made
+    private volatile IOException failure; // why the mesh cannot be built, if it cannot
+    private long timeout;              // how long the mesh may take, in ms
+    private long backoff;              // the first wait after a refused connect, in ms
+    private long maxBackoff;           // the longest wait after a refused connect, in ms
+    private long readyMillis;          // how long building the mesh took
+
+    /**
+     * @param newPort  the port of nodes given without one
+     * @param newRank  this node's rank
+     * @param newHosts every node, as host or host:port, in rank order
+     */
+    public MeshBootstrap(int newPort, int newRank, String[] newHosts){
+        port = newPort;
+        rank = newRank;
+        hosts = newHosts;
+        links = new PeerLink[hosts.length];
+        failure = null;
+        timeout = Long.getLong("chat.connect.timeout.ms", 120000);
+        backoff = Long.getLong("chat.connect.backoff.ms", 50);
+        maxBackoff = Long.getLong("chat.connect.backoff.max.ms", 2000);
+        readyMillis = -1;
+    }
+
+    /**
+     * Connects to the given peers in parallel: accepts the peers with a
+     * higher rank and connects to the peers with a lower rank. Returns once
+     * every link is ready.
+     *
+     * @param peers the ranks to link to
+     * @return the links, indexed by rank. Ranks not in peers are null.
+     * @throws IOException if a link fails or the mesh is not ready in time
+     */
+    public PeerLink[] connect(int[] peers) throws IOException {
+        long start = System.nanoTime();
+        long deadline = start + timeout * 1_000_000L;
+        missing = new CountDownLatch(peers.length);
+
+        List<Integer> higher = new ArrayList<Integer>();
+        ExecutorService tasks = VirtualThreads.newPerTaskExecutor();
+        for(int peer : peers){
+            if(peer > rank){
+                higher.add(peer);
+            }else if(peer < rank){
+                tasks.execute(() -> connectTo(peer, deadline));
+            }
+        }
+
+        ServerSocket server = null;
+        try{
+            if(!higher.isEmpty()){
+                // every higher rank may connect at the same moment
+                server = new ServerSocket();
+                server.setReuseAddress(true);
+                server.bind(new InetSocketAddress(HostPort.portOf(hosts[rank], port)), peers.length);
+                accept(server, tasks, higher, deadline);
+            }
+
+            long wait = deadline - System.nanoTime();
+            if(!missing.await(Math.max(0, wait), TimeUnit.NANOSECONDS) && failure == null){
+                failure = new SocketTimeoutException("mesh not ready after " + timeout +
+                        " ms, missing ranks " + missingRanks(peers));
+            }
+        }catch(InterruptedException e){
+            failure = new InterruptedIOException("interrupted while building the mesh");
+        }finally{
+            if(server != null){
+                server.close();
+            }
+            tasks.shutdownNow();
+        }
+
+        if(failure != null){
+            for(PeerLink link : links){
+                if(link != null){
+                    link.close();
+                }
+            }
+            throw failure;
+        }
+        readyMillis = (System.nanoTime() - start) / 1_000_000;
+        return links;
+    }
+
+    /**
+     * @return how long the last connect() took to make every link, in ms,
+     *         or -1 if it did not finish.
+     */
+    public long readyMillis(){
+        return readyMillis;
+    }
+
+    /**
+     * Accepts connections until every link is made, and says hello to
+     * every accepted socket in a task of its own.
+     */
+    private void accept(ServerSocket server, ExecutorService tasks, List<Integer> expected,
+                        long deadline) throws IOException {
+        server.setSoTimeout(ACCEPT_POLL_MS);
+        while(missing.getCount() > 0 && failure == null && System.nanoTime() < deadline){
+            Socket socket;
+            try{
+                socket = server.accept();
+            }catch(SocketTimeoutException e){
+                continue;
+            }
+            tasks.execute(() -> {
+                try{
+                    PeerLink link = hello(socket);
+                    if(!expected.contains(link.peerRank()) || !register(link)){
+                        link.close(); // not a peer of this node, or already linked
+                        return;
+                    }
+                    System.out.println("accepted from " + hosts[link.peerRank()]);
+                }catch(IOException e){
+                    // a failed handshake is the connector's to retry
+                    close(socket);
+                }
+            });
+        }
+    }
+
+    /**
+     * The body of a connecting task. Connects to a peer, retrying with
+     * backoff while the peer is not listening yet.
+     */
+    private void connectTo(int peer, long deadline){
+        InetSocketAddress address = null;
+        long wait = backoff;
+        try{
+            while(true){
+                if(address == null || address.isUnresolved()){
+                    address = new InetSocketAddress(HostPort.hostOf(hosts[peer]),
+                            HostPort.portOf(hosts[peer], port));
+                }
+                Socket socket = new Socket();
+                try{
+                    long left = (deadline - System.nanoTime()) / 1_000_000;
+                    socket.connect(address, (int) Math.max(1, Math.min(left, Integer.MAX_VALUE)));
+                    PeerLink link = hello(socket);
+                    if(link.peerRank() != peer){
+                        link.close();
+                        throw new StreamCorruptedException(hosts[peer] + " says it is rank " +
+                                link.peerRank() + ", not " + peer);
+                    }
+                    register(link);
+                    System.out.println("connected to " + hosts[peer]);
+                    return;
+                }catch(ConnectException | NoRouteToHostException | SocketTimeoutException e){
+                    close(socket);
+                    if(System.nanoTime() + wait * 1_000_000L >= deadline){
+                        throw e;
+                    }
+                }catch(IOException e){
+                    close(socket);
+                    throw e;
+                }
+
+                // wait between half and all of the backoff, so peers do not retry in step
+                Thread.sleep(wait / 2 + ThreadLocalRandom.current().nextLong(wait / 2 + 1));
+                wait = Math.min(wait * 2, maxBackoff);
+            }
+        }catch(IOException e){
+            fail(new IOException("cannot link to rank " + peer + " at " + hosts[peer], e));
+        }catch(InterruptedException e){
+            // the mesh was given up on
+        }
+    }
+
+    /**
+     * Exchanges hellos over a connected socket, which must not take longer
+     * than HELLO_TIMEOUT_MS.
+     */
+    private PeerLink hello(Socket socket) throws IOException {
+        socket.setSoTimeout(HELLO_TIMEOUT_MS);
+        PeerLink link = new PeerLink(socket, rank, hosts.length);
+        socket.setSoTimeout(0);
+        return link;
+    }
+
+    /**
+     * Stores a link unless its peer is already linked.
+     *
+     * @return whether the link was stored.
+     */
+    private synchronized boolean register(PeerLink link){
+        if(links[link.peerRank()] != null){
+            return false;
+        }
+        links[link.peerRank()] = link;
+        missing.countDown();
+        return true;
+    }
+
+    /**
+     * Gives up on the mesh, keeping the first reason.
+     */
+    private synchronized void fail(IOException e){
+        if(failure == null){
+            failure = e;
+        }
+        while(missing.getCount() > 0){
+            missing.countDown();
+        }
+    }
+
+    /**
+     * @return the ranks in peers that have no link yet.
+     */
+    private synchronized List<Integer> missingRanks(int[] peers){
+        List<Integer> result = new ArrayList<Integer>();
+        for(int peer : peers){
+            if(links[peer] == null){
+                result.add(peer);
+            }
+        }
+        return result;
+    }
+
+    private static void close(Socket socket){
+        try{
+            socket.close();
+        }catch(IOException e){
+            // already closed
+        }
+    }
+
+    /**
+     * @return every rank but this node's.
+     */
+    public static int[] fullMesh(int rank, int size){
+        int[] peers = new int[size - 1];
+        for(int i = 0, j = 0; i < size; i++){
+            if(i != rank){
+                peers[j++] = i;
+            }
+        }
+        return peers;
+    }
+
+    /**
+     * Finds a node's neighbors in the k-ary tree rooted at rank 0, where
+     * the children of rank r are ranks r * k + 1 through r * k + k.
+     *
+     * @return the parent (unless rank is 0) followed by the children.
+     */
+    public static int[] tree(int rank, int size, int fanout){
+        List<Integer> peers = new ArrayList<Integer>();
+        if(rank > 0){
+            peers.add((rank - 1) / fanout);
+        }
+        for(long child = (long) rank * fanout + 1;
+            child <= (long) rank * fanout + fanout && child < size; child++){
+            peers.add((int) child);
+        }
+
+        int[] result = new int[peers.size()];
+        for(int i = 0; i < result.length; i++){
+            result[i] = peers.get(i);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,330 @@
+/**
+ * A compact binary wire format for MessageData, used instead of Java
+ * serialization between Chat peers. Every message is one frame:
+ *
+ *   varint length      number of bytes that follow
+ *   varint kind        FULL_CLOCK or DELTA_CLOCK
+ *   varint senderRank
+ *   varint n           number of clock entries
+ *   FULL_CLOCK:  varint * n            the vector clock
+ *   DELTA_CLOCK: varint k, then k pairs of varint index, varint value
+ *                                      only the entries that changed
+ *   varint m           number of payload bytes
+ *   byte * m           the message in UTF-8
+ *
+ * Delta frames are differential vector clocks in the spirit of
+ * Singhal and Kshemkalyani: a frame only carries the entries that differ
+ * from the clock of the previous frame on the same link, and the decoder
+ * rebuilds the full clock from its copy of that previous clock. This
+ * needs a FIFO link and one encoder and one decoder per link, and keeps
+ * messages small once groups grow past a few dozen members.
+ *
+ * A codec owns one reusable buffer that frames are encoded into and
+ * decoded from, so encoding allocates nothing once the buffer is big
+ * enough. A codec is not thread safe, and one codec should either only
+ * encode or only decode.
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.io.*;                  // for DataInputStream, IOException
+import java.nio.charset.*;         // for StandardCharsets
+import java.util.*;                // for Arrays
+
+public class MessageCodec {
+    public static final int FULL_CLOCK = 0;  // the frame carries the whole vector clock
+    public static final int DELTA_CLOCK = 1; // the frame carries the entries that changed
+
+    private static final int MAX_VARINT = 5; // bytes in the longest int varint
+    private static final int MAX_FRAME = 1 << 24; // refuse frames bigger than 16 MB
+    private static final int MAX_CLOCK = 1 << 16; // refuse clocks of more members than this
+
+    private byte[] buffer;  // the frame being encoded or decoded
+    private int length;     // number of bytes of buffer in use
+    private int position;   // where the decoder is inside buffer
+    private int[] clock;    // the clock of the last frame, the base of delta frames
+    private MessageData encoded; // the message in the buffer, if encodeOnce() put it there
+    private byte[] bytes;   // a copy of the encoded frame, made by toByteArray()
+    private int members;    // the clock size frames must have, or -1 for any
+
+    public MessageCodec(){
+        this(-1);
+    }
+
+    /**
+     * @param groupSize the number of members in the group, which every
+     *                  decoded clock must have, or -1 to accept any size
+     */
+    public MessageCodec(int groupSize){
+        members = groupSize;
+        buffer = new byte[256];
+        length = 0;
+        position = 0;
+        clock = null;
+        encoded = null;
+        bytes = null;
+    }
+
+    /**
+     * Encodes a message into the buffer, replacing what was there.
+     * The frame can then be sent to any number of peers with toByteArray().
+     */
+    public void encode(MessageData message){
+        // leave room for the length prefix and fill it in afterwards
+        length = MAX_VARINT;
+        putVarint(FULL_CLOCK);
+        putVarint(message.senderRank);
+        putVarint(message.vClock.length);
+        for(int i = 0; i < message.vClock.length; i++){
+            putVarint(message.vClock[i]);
+        }
+        putUtf8(message.message);
+        sealFrame();
+        encoded = null;
+        bytes = null;
+    }
+
+    /**
+     * Encodes a message unless it is already in the buffer, so a message
+     * sent to many peers is encoded only once.
+     */
+    public void encodeOnce(MessageData message){
+        if(encoded != message){
+            encode(message);
+            encoded = message;
+        }
+    }
+
+    /**
+     * Encodes a message as a delta frame against the clock of the previous
+     * delta frame this codec encoded, replacing what was in the buffer.
+     * Every frame encoded this way must reach the same decoder, in order.
+     */
+    public void encodeDelta(MessageData message){
+        int[] vClock = message.vClock;
+        if(clock == null || clock.length != vClock.length){
+            clock = new int[vClock.length];
+        }
+
+        int changed = 0;
+        for(int i = 0; i < vClock.length; i++){
+            if(vClock[i] != clock[i]){
+                changed++;
+            }
+        }
+
+        length = MAX_VARINT;
+        putVarint(DELTA_CLOCK);
+        putVarint(message.senderRank);
+        putVarint(vClock.length);
+        putVarint(changed);
+        for(int i = 0; i < vClock.length; i++){
+            if(vClock[i] != clock[i]){
+                putVarint(i);
+                putVarint(vClock[i]);
+                clock[i] = vClock[i];
+            }
+        }
+        putUtf8(message.message);
+        sealFrame();
+        encoded = null;
+        bytes = null;
+    }
+
+    /**
+     * @return the last encoded frame. The array is made once per frame and
+     *         shared by every caller, so it must not be modified.
+     */
+    public byte[] toByteArray(){
+        if(bytes == null){
+            bytes = Arrays.copyOfRange(buffer, position, length);
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads one frame from a stream and decodes it, blocking until the
+     * whole frame arrives.
+     *
+     * @return the decoded message.
+     */
+    public MessageData decode(DataInputStream in) throws IOException {
+        int size = readVarint(in);
+        if(size < 0 || size > MAX_FRAME){
+            throw new StreamCorruptedException("bad frame length " + size);
+        }
+        ensure(size);
+        in.readFully(buffer, 0, size);
+        length = size;
+        position = 0;
+
+        int kind = getVarint();
+        int senderRank = getVarint();
+        int entries = getVarint();
+        if(entries < 0 || entries > MAX_CLOCK || (members >= 0 && entries != members)){
+            throw new StreamCorruptedException("bad clock size " + entries);
+        }
+        // every entry of a full clock takes at least a byte, so a bigger count is a lie.
+        // A delta clock only carries the entries that changed, so it can be shorter.
+        if(kind == FULL_CLOCK && entries > length - position){
+            throw new StreamCorruptedException("bad clock size " + entries);
+        }
+        int[] vClock = new int[entries];
+        if(kind == FULL_CLOCK){
+            for(int i = 0; i < vClock.length; i++){
+                vClock[i] = getVarint();
+            }
+        }else if(kind == DELTA_CLOCK){
+            // start from the clock of the previous delta frame
+            if(clock != null && clock.length == vClock.length){
+                System.arraycopy(clock, 0, vClock, 0, vClock.length);
+            }
+            // every change is an index and a value of at least a byte each
+            int changed = getVarint();
+            if(changed < 0 || changed > (length - position) / 2){
+                throw new StreamCorruptedException("bad change count " + changed);
+            }
+            for(int k = 0; k < changed; k++){
+                int i = getVarint();
+                if(i < 0 || i >= vClock.length){
+                    throw new StreamCorruptedException("bad clock index " + i);
+                }
+                vClock[i] = getVarint();
+            }
+            clock = vClock.clone();
+        }else{
+            throw new StreamCorruptedException("unknown frame kind " + kind);
+        }
+        int bytes = getVarint();
+        if(bytes < 0 || position + bytes > length){
+            throw new StreamCorruptedException("bad payload length " + bytes);
+        }
+        String message = new String(buffer, position, bytes, StandardCharsets.UTF_8);
+        position += bytes;
+
+        return new MessageData(message, vClock, senderRank);
+    }
+
+    /**
+     * Writes the frame length right in front of the frame body, which
+     * starts at MAX_VARINT, and leaves position at the first byte of the frame.
+     */
+    private void sealFrame(){
+        int body = length - MAX_VARINT;
+        int prefix = varintSize(body);
+        position = MAX_VARINT - prefix;
+
+        int end = length;
+        length = position;
+        putVarint(body);
+        length = end;
+    }
+
+    /**
+     * Appends a string as a varint byte count followed by UTF-8.
+     */
+    private void putUtf8(String text){
+        // a char never needs more than three UTF-8 bytes
+        ensure(length + MAX_VARINT + text.length() * 3);
+        int start = length + MAX_VARINT;
+        int out = start;
+        for(int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+            if(c < 0x80){
+                buffer[out++] = (byte) c;
+            }else if(c < 0x800){
+                buffer[out++] = (byte) (0xC0 | (c >> 6));
+                buffer[out++] = (byte) (0x80 | (c & 0x3F));
+            }else if(Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))){
+                int code = Character.toCodePoint(c, text.charAt(++i));
+                buffer[out++] = (byte) (0xF0 | (code >> 18));
+                buffer[out++] = (byte) (0x80 | ((code >> 12) & 0x3F));
+                buffer[out++] = (byte) (0x80 | ((code >> 6) & 0x3F));
+                buffer[out++] = (byte) (0x80 | (code & 0x3F));
+            }else if(Character.isSurrogate(c)){
+                buffer[out++] = (byte) '?'; // unpaired surrogate, like String.getBytes
+            }else{
+                buffer[out++] = (byte) (0xE0 | (c >> 12));
+                buffer[out++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[out++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        // the length goes in front of the bytes, so slide them if it is short
+        int bytes = out - start;
+        putVarint(bytes);
+        if(length != start){
+            System.arraycopy(buffer, start, buffer, length, bytes);
+        }
+        length += bytes;
+    }
+
+    /**
+     * Appends an unsigned LEB128 varint. Small values take one byte.
+     */
+    private void putVarint(int value){
+        ensure(length + MAX_VARINT);
+        while((value & ~0x7F) != 0){
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    /**
+     * @return the next varint of the decoded frame.
+     */
+    private int getVarint() throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7){
+            if(position >= length){
+                throw new EOFException("truncated frame");
+            }
+            byte b = buffer[position++];
+            value |= (b & 0x7F) << shift;
+            if(b >= 0){
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("varint too long");
+    }
+
+    /**
+     * @return the next varint of the stream.
+     */
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7){
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if(b >= 0){
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("varint too long");
+    }
+
+    /**
+     * @return the number of bytes value takes as a varint.
+     */
+    private static int varintSize(int value){
+        int size = 1;
+        while((value & ~0x7F) != 0){
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Grows the buffer so it holds at least capacity bytes.
+     */
+    private void ensure(int capacity){
+        if(buffer.length < capacity){
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+
+}
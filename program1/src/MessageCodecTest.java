@@ -0,0 +1,81 @@
+/**
+ * Round-trip checks of MessageCodec. Run it with "java MessageCodecTest";
+ * it prints every failed check and exits with status 1 if any failed.
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.io.*;                  // for DataInputStream, ByteArrayInputStream
+import java.util.*;                // for Arrays
+
+public class MessageCodecTest {
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException {
+        fullFrameRoundTrip();
+        deltaFramesInLargeGroup();
+
+        if(failures > 0){
+            System.err.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("all checks passed");
+    }
+
+    /**
+     * A full clock frame decodes to the message that was encoded.
+     */
+    private static void fullFrameRoundTrip() throws IOException {
+        MessageCodec encoder = new MessageCodec();
+        MessageCodec decoder = new MessageCodec(4);
+
+        MessageData sent = new MessageData("hello", new int[]{3, 0, 7, 1}, 2);
+        encoder.encode(sent);
+        check("full frame", sent, decoder.decode(stream(encoder.toByteArray())));
+    }
+
+    /**
+     * Delta frames of a group far bigger than the frames themselves decode
+     * to the clocks that were encoded, one frame after another on one link.
+     */
+    private static void deltaFramesInLargeGroup() throws IOException {
+        int members = 64;
+        MessageCodec encoder = new MessageCodec();
+        MessageCodec decoder = new MessageCodec(members);
+
+        int[] vClock = new int[members];
+        for(int round = 0; round < 10; round++){
+            vClock[round % members]++;
+            vClock[(round * 7) % members]++;
+            MessageData sent = new MessageData("round " + round, vClock.clone(), round % members);
+            encoder.encodeDelta(sent);
+
+            byte[] frame = encoder.toByteArray();
+            if(frame.length >= members){
+                fail("delta frame " + round + " is " + frame.length + " bytes, not a delta");
+            }
+            check("delta frame " + round, sent, decoder.decode(stream(frame)));
+        }
+    }
+
+    private static DataInputStream stream(byte[] frame){
+        return new DataInputStream(new ByteArrayInputStream(frame));
+    }
+
+    private static void check(String name, MessageData expected, MessageData actual){
+        if(!expected.message.equals(actual.message)
+                || expected.senderRank != actual.senderRank
+                || !Arrays.equals(expected.vClock, actual.vClock)){
+            fail(name + ": expected " + expected.message + " " + Arrays.toString(expected.vClock)
+                    + " from " + expected.senderRank + ", got " + actual.message + " "
+                    + Arrays.toString(actual.vClock) + " from " + actual.senderRank);
+        }
+    }
+
+    private static void fail(String message){
+        System.err.println("FAIL " + message);
+        failures++;
+    }
+
+}
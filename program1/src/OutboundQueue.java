@@ -0,0 +1,226 @@
+/**
+ * A bounded queue of encoded frames waiting to be written to one client.
+ * Once the queue reaches its limit, a slow-consumer policy decides what
+ * happens to new frames, so one client that stops reading cannot make
+ * the server buffer without bound or stall everybody else.
+ *
+ * The limit and policy are read once, when the server starts, from the
+ * chat.queue.limit and chat.queue.policy system properties (see Settings).
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.nio.*;           // for ByteBuffer
+import java.util.*;          // for ArrayDeque
+
+public class OutboundQueue {
+
+    /**
+     * What to do with a client whose queue is full.
+     */
+    public enum Policy {
+        DROP_OLDEST,  // forget the oldest queued frame to make room
+        COALESCE,     // replace the whole backlog with one notice
+        DISCONNECT;   // give up on the client
+
+        /**
+         * @return the policy named like "drop-oldest", "coalesce" or "disconnect".
+         * @throws IllegalArgumentException if no policy has that name
+         */
+        public static Policy parse(String name){
+            try{
+                return valueOf(name.trim().toUpperCase().replace('-', '_'));
+            }catch(IllegalArgumentException e){
+                throw new IllegalArgumentException("unknown slow-consumer policy \"" + name
+                        + "\", expected drop-oldest, coalesce or disconnect");
+            }
+        }
+    }
+
+    /**
+     * The limit and policy every client's queue gets. A server reads them
+     * once when it starts, so a bad setting stops the server right away
+     * instead of failing every client that connects.
+     */
+    public static class Settings {
+        private int limit;       // the high-water mark in frames
+        private Policy policy;   // what to do at the high-water mark
+
+        public Settings(int newLimit, Policy newPolicy){
+            limit = newLimit;
+            policy = newPolicy;
+        }
+
+        /**
+         * @return the settings of the chat.queue.limit and chat.queue.policy
+         *         system properties, or the defaults for the ones not set.
+         * @throws IllegalArgumentException if a property is set to
+         *                                  something invalid
+         */
+        public static Settings fromProperties(){
+            int limit = DEFAULT_LIMIT;
+            String value = System.getProperty("chat.queue.limit");
+            if(value != null){
+                try{
+                    limit = Integer.parseInt(value.trim());
+                }catch(NumberFormatException e){
+                    limit = 0;
+                }
+                if(limit <= 0){
+                    throw new IllegalArgumentException("chat.queue.limit must be a positive"
+                            + " number of frames, not \"" + value + "\"");
+                }
+            }
+            String policy = System.getProperty("chat.queue.policy");
+            return new Settings(limit, policy == null ? DEFAULT_POLICY : Policy.parse(policy));
+        }
+
+        /**
+         * @return a new empty queue with these settings.
+         */
+        public OutboundQueue newQueue(){
+            return new OutboundQueue(limit, policy);
+        }
+    }
+
+    public static final int DEFAULT_LIMIT = 1024;                   // frames per client
+    public static final Policy DEFAULT_POLICY = Policy.DISCONNECT;
+
+    private ArrayDeque<ByteBuffer> frames; // frames that were not started yet
+    private int limit;                     // the high-water mark in frames
+    private Policy policy;                 // what to do at the high-water mark
+    private int maxDepth;                  // the deepest the queue has been
+    private long dropped;                  // frames that were dropped or coalesced
+    private boolean closed;                // whether the queue was closed
+    private boolean framed;                // whether notices use the framed protocol
+
+    /**
+     * @param newLimit  the number of frames the queue holds before the policy applies
+     * @param newPolicy what to do when a frame arrives at a full queue
+     */
+    public OutboundQueue(int newLimit, Policy newPolicy){
+        frames = new ArrayDeque<ByteBuffer>();
+        limit = Math.max(1, newLimit);
+        policy = newPolicy;
+        maxDepth = 0;
+        dropped = 0;
+        closed = false;
+        framed = false;
+    }
+
+    /**
+     * Queues a frame, applying the slow-consumer policy if the queue is full.
+     * The frame is stored as is, so it must not change afterwards.
+     *
+     * @return false if the client should be disconnected.
+     */
+    public synchronized boolean offer(ByteBuffer frame){
+        if(closed){
+            return false;
+        }
+
+        if(frames.size() >= limit){
+            switch(policy){
+            case DISCONNECT:
+                return false;
+            case DROP_OLDEST:
+                frames.poll();
+                dropped++;
+                break;
+            case COALESCE:
+                long skipped = frames.size();
+                dropped += skipped;
+                frames.clear();
+                byte[] notice = FrameCodec.toBytes(
+                        "server: skipped " + skipped + " messages", framed);
+                frames.add(ByteBuffer.wrap(notice));
+                break;
+            }
+        }
+
+        frames.add(frame);
+        maxDepth = Math.max(maxDepth, frames.size());
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Sets the framing of the notices the queue inserts, which must be the
+     * client's (writeUTF until this is called).
+     */
+    public synchronized void setFramed(boolean newFramed){
+        framed = newFramed;
+    }
+
+    /**
+     * @return the oldest frame without removing it, or null if there is none.
+     */
+    public synchronized ByteBuffer peek(){
+        return frames.peek();
+    }
+
+    /**
+     * Copies up to into.length - from of the oldest frames into the array
+     * without removing them, for a gathering write.
+     *
+     * @return the index after the last frame copied.
+     */
+    public synchronized int peek(ByteBuffer[] into, int from){
+        Iterator<ByteBuffer> it = frames.iterator();
+        while(from < into.length && it.hasNext()){
+            into[from++] = it.next();
+        }
+        return from;
+    }
+
+    /**
+     * @return the oldest frame, or null if there is none.
+     */
+    public synchronized ByteBuffer poll(){
+        return frames.poll();
+    }
+
+    /**
+     * Waits until a frame is queued or the queue is closed.
+     *
+     * @return the oldest frame, or null once the queue is closed.
+     */
+    public synchronized ByteBuffer take() throws InterruptedException {
+        while(frames.isEmpty() && !closed){
+            wait();
+        }
+        return frames.poll();
+    }
+
+    /**
+     * Drops every queued frame and wakes up anybody waiting in take().
+     */
+    public synchronized void close(){
+        closed = true;
+        frames.clear();
+        notifyAll();
+    }
+
+    /**
+     * @return the number of frames waiting to be written.
+     */
+    public synchronized int depth(){
+        return frames.size();
+    }
+
+    /**
+     * @return the deepest the queue has been.
+     */
+    public synchronized int maxDepth(){
+        return maxDepth;
+    }
+
+    /**
+     * @return the number of frames that were dropped or coalesced.
+     */
+    public synchronized long dropped(){
+        return dropped;
+    }
+
+}
@@ -0,0 +1,281 @@
+/**
+ * A connection between two Chat peers. Right after connecting, both ends
+ * send a short hello with their rank, the size of the group, and the wire
+ * formats they want. The ranks identify the peers, and the link uses
+ * the compact MessageCodec format if both ends want it and Java
+ * serialization otherwise. Setting the chat.codec system property to
+ * "java" makes this end ask for Java serialization.
+ *
+ * Setting the chat.clocks system property to "delta" asks for delta
+ * encoded vector clocks, which binary links use if both ends ask for them.
+ *
+ * Messages are encoded by the caller of send() and written by a writer
+ * thread, which coalesces everything queued for the peer into one write
+ * and one flush. chat.batch.bytes caps a batch (64 KB by default), and
+ * chat.batch.us lets the writer wait that many microseconds for more
+ * messages before it writes (0 by default: only what is already queued).
+ * close() lets the writer send everything queued before it closes the socket.
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.net.*;  // for Socket
+import java.io.*;   // for streams, IOException
+import java.util.concurrent.*; // for LinkedBlockingQueue, TimeUnit
+
+public class PeerLink {
+    private static final int MAGIC = 0x43484154;   // "CHAT"
+    private static final int VERSION = 3;          // version of the hello
+    private static final int CODEC_JAVA = 0;       // Java serialization
+    private static final int CODEC_BINARY = 1;     // MessageCodec frames
+    private static final int CLOCKS_FULL = 0;      // every frame carries the whole clock
+    private static final int CLOCKS_DELTA = 1;     // frames carry the entries that changed
+    private static final byte[] END = new byte[0]; // queued by close(), after the last message
+    private static final long CLOSE_MILLIS = 5000; // how long close() waits for the writer
+
+    private Socket socket;             // the connection to the peer
+    private OutputStream out;          // raw output, one write per batch
+    private DataInputStream in;        // buffered input for binary frames
+    private ObjectOutputStream objectOut; // used with Java serialization, into serialized
+    private ByteArrayOutputStream serialized; // the bytes of the last serialized message
+    private ObjectInputStream objectIn;   // used with Java serialization
+    private MessageCodec decoder;      // decodes frames from the peer
+    private MessageCodec encoder;      // encodes delta frames for this peer only
+    private boolean binary;            // whether MessageCodec frames are used
+    private boolean delta;             // whether frames carry delta clocks
+    private int peerRank;              // the rank the peer sent in its hello
+
+    private LinkedBlockingQueue<byte[]> outbox; // encoded messages for the writer
+    private Thread writer;             // writes the outbox in batches
+    private int batchBytes;            // the most bytes in one batch
+    private long batchNanos;           // how long a batch waits for more messages
+    private volatile IOException failure; // why the writer stopped, if it did
+    private volatile boolean closed;   // whether close() was called
+    private volatile long batches;     // number of writes to the peer
+    private volatile long messages;    // number of messages written to the peer
+
+    /**
+     * Exchanges hellos over a freshly connected socket and sets up the
+     * streams of the agreed format. Both ends write before they read, so
+     * the order in which the two ends run this does not matter.
+     *
+     * @param newSocket a connected socket to another Chat peer
+     * @param rank      this node's rank
+     * @param size      the number of nodes in the chat, which both ends
+     *                  must agree on
+     * @throws StreamCorruptedException if the peer is not a Chat peer of
+     *                                  the same group
+     */
+    public PeerLink(Socket newSocket, int rank, int size) throws IOException {
+        socket = newSocket;
+        socket.setTcpNoDelay(true);
+        out = socket.getOutputStream();
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        int wanted = "java".equals(System.getProperty("chat.codec")) ? CODEC_JAVA : CODEC_BINARY;
+        int clocks = "delta".equals(System.getProperty("chat.clocks")) ? CLOCKS_DELTA : CLOCKS_FULL;
+        DataOutputStream hello = new DataOutputStream(out);
+        hello.writeInt(MAGIC);
+        hello.writeByte(VERSION);
+        hello.writeInt(rank);
+        hello.writeInt(size);
+        hello.writeByte(wanted);
+        hello.writeByte(clocks);
+        hello.flush();
+
+        if(in.readInt() != MAGIC || in.readUnsignedByte() != VERSION){
+            throw new StreamCorruptedException("peer does not speak this Chat hello");
+        }
+        peerRank = in.readInt();
+        int theirSize = in.readInt();
+        if(theirSize != size || peerRank < 0 || peerRank >= size || peerRank == rank){
+            throw new StreamCorruptedException("peer claims rank " + peerRank + " of " +
+                    theirSize + ", this is rank " + rank + " of " + size);
+        }
+        int theirs = in.readUnsignedByte();
+        int theirClocks = in.readUnsignedByte();
+        binary = (wanted == CODEC_BINARY && theirs == CODEC_BINARY);
+        delta = binary && clocks == CLOCKS_DELTA && theirClocks == CLOCKS_DELTA;
+
+        if(binary){
+            decoder = new MessageCodec(size);
+            encoder = delta ? new MessageCodec() : null;
+        }else{
+            // the header is written first, so both ends can build their inputs
+            serialized = new ByteArrayOutputStream();
+            objectOut = new ObjectOutputStream(serialized);
+            objectOut.flush();
+            serialized.writeTo(out);
+            serialized.reset();
+            objectIn = new ObjectInputStream(in);
+        }
+
+        outbox = new LinkedBlockingQueue<byte[]>();
+        batchBytes = Integer.getInteger("chat.batch.bytes", 1 << 16);
+        batchNanos = Long.getLong("chat.batch.us", 0) * 1000;
+        writer = new Thread(this::drain, "writer-" + peerRank);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return the rank of the peer at the other end.
+     */
+    public int peerRank(){
+        return peerRank;
+    }
+
+    /**
+     * @return whether the link uses MessageCodec frames.
+     */
+    public boolean isBinary(){
+        return binary;
+    }
+
+    /**
+     * @return whether the link sends delta encoded vector clocks.
+     */
+    public boolean isDelta(){
+        return delta;
+    }
+
+    /**
+     * Encodes a message and queues it for the writer thread.
+     *
+     * @param message the message to send
+     * @param shared  a codec shared by all the links of a node, so a message
+     *                sent with full clocks is encoded once for every link
+     * @throws IOException if an earlier write to the peer failed or the
+     *                     link was closed
+     */
+    public void send(MessageData message, MessageCodec shared) throws IOException {
+        if(failure != null){
+            throw failure;
+        }
+        if(closed){
+            throw new IOException("link to " + peerRank + " is closed");
+        }
+
+        if(delta){
+            encoder.encodeDelta(message);
+            outbox.add(encoder.toByteArray());
+        }else if(binary){
+            shared.encodeOnce(message);
+            outbox.add(shared.toByteArray());
+        }else{
+            objectOut.writeObject(message);
+            // forget the back references so the stream's handle table stays small
+            objectOut.reset();
+            objectOut.flush();
+            outbox.add(serialized.toByteArray());
+            serialized.reset();
+        }
+    }
+
+    /**
+     * The body of the writer thread. Takes the oldest message, adds whatever
+     * else is queued (waiting up to batchNanos for more) until the batch is
+     * full, and sends the batch with one write. Stops once it has sent
+     * everything queued before END.
+     */
+    private void drain(){
+        byte[] batch = new byte[batchBytes];
+        byte[] next = null; // a message that did not fit in the previous batch
+        boolean end = false; // whether END was taken from the outbox
+        try{
+            while(!end){
+                if(next == null){
+                    next = outbox.take();
+                }
+                int length = 0;
+                int count = 0;
+                long deadline = System.nanoTime() + batchNanos;
+
+                while(next != null){
+                    if(next == END){
+                        end = true;
+                        next = null;
+                        break; // send what is in the batch and stop
+                    }
+                    if(length > 0 && length + next.length > batch.length){
+                        break; // the batch is full; next starts the following one
+                    }
+                    if(next.length > batch.length){
+                        out.write(next); // bigger than a batch on its own
+                    }else{
+                        System.arraycopy(next, 0, batch, length, next.length);
+                        length += next.length;
+                    }
+                    count++;
+
+                    long wait = deadline - System.nanoTime();
+                    next = (wait > 0) ? outbox.poll(wait, TimeUnit.NANOSECONDS) : outbox.poll();
+                }
+
+                if(count == 0){
+                    break; // END came with nothing before it
+                }
+                out.write(batch, 0, length);
+                out.flush(); // make sure the batch was sent
+                batches++;
+                messages += count;
+            }
+        }catch(IOException e){
+            failure = e;
+        }catch(InterruptedException e){
+            // close() gave up waiting
+        }
+    }
+
+    /**
+     * @return the number of writes to the peer so far.
+     */
+    public long batches(){
+        return batches;
+    }
+
+    /**
+     * @return the number of messages written to the peer so far.
+     */
+    public long messages(){
+        return messages;
+    }
+
+    /**
+     * Reads the next message, blocking until it arrives.
+     */
+    public MessageData receive() throws IOException {
+        if(binary){
+            return decoder.decode(in);
+        }
+        try{
+            return (MessageData) objectIn.readObject();
+        }catch(ClassNotFoundException e){
+            throw new StreamCorruptedException("not a MessageData: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the connection once the writer has sent every queued message,
+     * or after CLOSE_MILLIS if it cannot.
+     */
+    public void close(){
+        if(!closed){
+            closed = true;
+            outbox.add(END);
+        }
+        try{
+            writer.join(CLOSE_MILLIS);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        writer.interrupt();
+        try{
+            socket.close();
+        }catch(IOException e){
+            // already closed
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+/**
+ * Creates one thread per task, using virtual threads when the JVM has them
+ * (Java 21 and later) and falling back to a cached pool of platform daemon
+ * threads on older JVMs. Lets the thread-per-connection code compile and
+ * run on both.
+ *
+ * @author  Youssef Beltagy
+ * @version 10/17/2026
+ */
+
+import java.lang.reflect.*;  // for Method
+import java.util.concurrent.*; // for ExecutorService, Executors
+
+public class VirtualThreads {
+
+    /**
+     * @return whether this JVM supports virtual threads.
+     */
+    public static boolean available(){
+        try{
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        }catch(NoSuchMethodException e){
+            return false;
+        }
+    }
+
+    /**
+     * @return an executor that starts a new virtual thread for every task,
+     *         or a cached pool of platform daemon threads if there are none.
+     */
+    public static ExecutorService newPerTaskExecutor(){
+        try{
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }catch(ReflectiveOperationException e){
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+}
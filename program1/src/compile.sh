@@ -6,8 +6,27 @@ rm MessagePair.class
 rm MessageData.class
 rm oldChat.class
 javac MessageData.java
+javac MessageCodec.java
+javac MessageCodecTest.java
+javac PeerLink.java
+javac HostPort.java
+javac MeshBootstrap.java
+javac CausalDeliveryQueue.java
+javac FrameCodec.java
+javac FrameParser.java
+javac FrameParserTest.java
 javac ChatServer.java
 javac ChatConnection.java
+javac ChatChannel.java
+javac HashRing.java
+javac ClusterBridge.java
+javac ChatEventLoop.java
+javac OutboundQueue.java
+javac VirtualThreads.java
+javac ChatRoom.java
+javac ChatLog.java
+javac LatencyHistogram.java
+javac ChatLoadGenerator.java
 javac Chat.java
 javac ChatClient.java
 javac OldChat.java
\ No newline at end of file
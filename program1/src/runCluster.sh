@@ -0,0 +1,54 @@
+rm -f *.txt
+rm -f *.class
+javac *.java
+
+# Three nio servers on this machine, a client on each, and every client
+# must see the same messages. Servers take ports 6501-6503 for clients
+# and 6511-6513 for bridges.
+
+# cluster <name> <relay> <peers of a> <peers of b> <peers of c>
+cluster() {
+	java -Dchat.cluster.port=6511 -Dchat.cluster.peers=$3 -Dchat.cluster.relay=$2 ChatServer 6501 nio &
+	a=$!
+	java -Dchat.cluster.port=6512 -Dchat.cluster.peers=$4 -Dchat.cluster.relay=$2 ChatServer 6502 nio &
+	b=$!
+	java -Dchat.cluster.port=6513 -Dchat.cluster.peers=$5 -Dchat.cluster.relay=$2 ChatServer 6503 nio &
+	c=$!
+	sleep 2
+
+	# everybody is connected before the first message, and the messages
+	# are a second apart so every client sees them in the same order
+	(sleep 2; echo "hello from a"; sleep 4) | java ChatClient a localhost 6501 > $1_a.txt &
+	(sleep 3; echo "hello from b"; sleep 3) | java ChatClient b localhost 6502 > $1_b.txt &
+	(sleep 4; echo "hello from c"; sleep 2) | java ChatClient c localhost 6503 > $1_c.txt &
+	wait %4 %5 %6
+
+	kill $a $b $c
+	wait
+
+	echo "$1: a received $(grep -c hello $1_a.txt) of 3 messages"
+	echo "$1: a vs b"
+	diff -s $1_a.txt $1_b.txt
+	echo "$1: a vs c"
+	diff -s $1_a.txt $1_c.txt
+}
+
+# full mesh: every server dials the other two
+cluster mesh false localhost:6512,localhost:6513 localhost:6511,localhost:6513 localhost:6511,localhost:6512
+
+
+echo ; echo ; echo
+
+
+# relaying chain a - b - c: b passes on what it reads from a and c
+cluster chain true localhost:6512 localhost:6511,localhost:6513 localhost:6512
+
+
+echo ; echo ; echo
+
+
+
+
+echo "Test finished"
+
+echo ; echo ; echo
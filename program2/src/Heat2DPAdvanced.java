@@ -3,8 +3,20 @@
 
 // Description: Heat conduction simulation using euler's equation.
 // Read the report for more details.
-
+//
+// Options, as system properties before the class name:
+// -Dheat.threads=N   computes every rank's stripe with N threads (1)
+// -Dheat.overlap     exchanges the edges while computing the cells
+//                    that do not need them, and reports the overlap
+// -Dheat.grid=2d     splits the matrix into blocks over a 2D process
+//                    grid instead of into column stripes
+// -Dheat.halo=k      keeps k auxiliary columns and rows, exchanged every
+//                    k steps, and computes the neighbours' cells they
+//                    still cover in between (1). Turns off -Dheat.overlap
+
+import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.*;
 import mpi.*;
 
 public class Heat2DPAdvanced {
@@ -24,8 +36,42 @@ public class Heat2DPAdvanced {
 	private static int nprocs = 1; // number of processes
 	private static int tag = 0; // tag to use mpi send and receive
 
-	private static int[] offCols = { 0 }; // array of offsets for every process
-	private static int[] numCols = { 100 }; // array of number of cols for every process
+	private static int[] offCols = { 0 }; // array of offsets for every process column
+	private static int[] numCols = { 100 }; // array of number of cols for every process column
+	private static int[] offRows = { 0 }; // array of offsets for every process row
+	private static int[] numRows = { 100 }; // array of number of rows for every process row
+
+	private static boolean grid = false; // whether ranks get blocks instead of stripes
+	private static Cartcomm cart = null; // the process grid, when there is one
+	private static int px = 1; // number of process columns
+	private static int py = 1; // number of process rows
+	private static int cx = 0; // this process's column in the process grid
+	private static int cy = 0; // this process's row in the process grid
+	private static int leftRank = MPI.PROC_NULL; // the neighbours, or MPI.PROC_NULL
+	private static int rightRank = MPI.PROC_NULL;
+	private static int upRank = MPI.PROC_NULL;
+	private static int downRank = MPI.PROC_NULL;
+	private static int halo = 1; // number of auxiliary columns or rows on a side
+
+	// the sides of a block, to index edgesOut and edgesIn
+	private static final int LEFT = 0;
+	private static final int RIGHT = 1;
+	private static final int UP = 2;
+	private static final int DOWN = 3;
+	private static double[][] edgesOut = new double[4][]; // the edges of every side packed for sending
+	private static double[][] edgesIn = new double[4][]; // the auxiliary edges of every side as received
+
+	private static int phase = 2 * 100 * 100; // number of elements in one phase of z
+	private static int left = 0; // the column of the whole matrix stored first in z
+	private static int top = 0; // the row of the whole matrix stored first in z
+	private static int height = 100; // number of rows stored of every column
+
+	private static int threads = 1; // threads computing this rank's stripe
+	private static ExecutorService pool = null; // the threads besides the main one
+
+	private static boolean overlap = false; // whether edges are exchanged while computing
+	private static long overlapNanos = 0; // time computing while edges were in flight
+	private static long waitNanos = 0; // time waiting for edges afterwards
 
 	public static void main(String[] args) throws MPIException {
 
@@ -58,13 +104,16 @@ public class Heat2DPAdvanced {
 					(endTime.getTime() - startTime.getTime()));
 		}
 
+		if (overlap)
+			reportOverlap();
+
 		// finalize MPI
 		MPI.Finalize();
 
 	}
 
 	// Description: initializes the matrix and calculates the elements of
-	// offCols and numCols
+	// offCols, numCols, offRows and numRows
 	// Preconditions: There are four arguments and MPI.init() was called
 	// Postconditions: The Matrix is initialized and ready for simulation.
 	public static void setup(String[] args) throws MPIException {
@@ -79,33 +128,91 @@ public class Heat2DPAdvanced {
 		nprocs = MPI.COMM_WORLD.Size();
 		tag = 0;
 
-		offCols = new int[nprocs];
-		numCols = new int[nprocs];
+		// the edges of a deep halo are not exchanged while computing
+		halo = Math.max(1, Integer.getInteger("heat.halo", 1));
+		overlap = Boolean.getBoolean("heat.overlap") && halo == 1;
+
+		// only the main thread talks to MPI; the pool only computes
+		threads = Math.max(1, Integer.getInteger("heat.threads", 1));
+		if (threads > 1) {
+			pool = Executors.newFixedThreadPool(threads - 1, task -> {
+				Thread thread = new Thread(task);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		// stripes are a grid of one process row
+		grid = "2d".equals(System.getProperty("heat.grid"));
+		int[] dims = { nprocs, 1 };
+		if (grid) {
+			dims = new int[] { 0, 0 };
+			Cartcomm.Dims_create(nprocs, dims);
+			cart = MPI.COMM_WORLD.Create_cart(dims, new boolean[] { false, false }, false);
+			int[] coords = cart.Coords(myrank);
+			cx = coords[0];
+			cy = coords[1];
+			ShiftParms columns = cart.Shift(0, 1);
+			ShiftParms rows = cart.Shift(1, 1);
+			leftRank = columns.rank_source;
+			rightRank = columns.rank_dest;
+			upRank = rows.rank_source;
+			downRank = rows.rank_dest;
+		} else {
+			cx = myrank;
+			cy = 0;
+			leftRank = (myrank > 0) ? myrank - 1 : MPI.PROC_NULL;
+			rightRank = (myrank < nprocs - 1) ? myrank + 1 : MPI.PROC_NULL;
+		}
+		px = dims[0];
+		py = dims[1];
+
+		offCols = new int[px];
+		numCols = new int[px];
+		partition(offCols, numCols);
+		offRows = new int[py];
+		numRows = new int[py];
+		partition(offRows, numRows);
+
+		// a halo only comes from the next block, so it cannot be deeper
+		if ((px > 1 && halo > numCols[px - 1]) || (py > 1 && halo > numRows[py - 1])) {
 
-		int stripe = size / nprocs;
-		int remainder = size % nprocs;
+			if (myrank == 0)
+				System.out.println("heat.halo is deeper than the narrowest block");
 
-		for (int i = 0; i < nprocs; i++) {
-			numCols[i] = stripe + ((i < remainder) ? 1 : 0);
-			offCols[i] = stripe * i + ((i < remainder) ? i : remainder);
+			MPI.Finalize();
+			System.exit(-1);
 		}
 
 		// create a space
 		if (myrank == 0) {
 
-			z = new double[2 * size * size];
-
-		} else if (myrank == nprocs - 1) {
-
-			// add an auxiliary column
-			z = new double[2 * size * (numCols[myrank] + 1)];
+			// the whole matrix, to gather the others into
+			phase = size * size;
+			left = 0;
+			top = 0;
+			height = size;
 
 		} else {
 
-			// add two auxiliary columns. One on each side
-			z = new double[2 * size * (numCols[myrank] + 2)];
+			// add auxiliary columns or rows on every side with a neighbour
+			left = offCols[cx] - ((cx > 0) ? halo : 0);
+			top = offRows[cy] - ((cy > 0) ? halo : 0);
+			height = numRows[cy] + ((cy > 0) ? halo : 0) + ((cy < py - 1) ? halo : 0);
+			phase = height * (numCols[cx] + ((cx > 0) ? halo : 0) + ((cx < px - 1) ? halo : 0));
 		}
 
+		z = new double[2 * phase];
+		edgesOut[LEFT] = new double[halo * numRows[cy]];
+		edgesIn[LEFT] = new double[halo * numRows[cy]];
+		edgesOut[RIGHT] = new double[halo * numRows[cy]];
+		edgesIn[RIGHT] = new double[halo * numRows[cy]];
+		// the rows span the auxiliary columns too
+		edgesOut[UP] = new double[halo * (numCols[cx] + 2 * halo)];
+		edgesIn[UP] = new double[halo * (numCols[cx] + 2 * halo)];
+		edgesOut[DOWN] = new double[halo * (numCols[cx] + 2 * halo)];
+		edgesIn[DOWN] = new double[halo * (numCols[cx] + 2 * halo)];
+
 		for (int i = 0; i < z.length; i++) {
 			// neither hot nor cold.
 			z[i] = 0;
@@ -113,6 +220,21 @@ public class Heat2DPAdvanced {
 
 	}
 
+	// Description: splits the side of the matrix into nearly equal parts
+	// Preconditions: off and num have one element per part
+	// Postconditions: off and num hold the offset and length of every part
+	public static void partition(int[] off, int[] num) {
+
+		int stripe = size / num.length;
+		int remainder = size % num.length;
+
+		for (int i = 0; i < num.length; i++) {
+			num[i] = stripe + ((i < remainder) ? 1 : 0);
+			off[i] = stripe * i + ((i < remainder) ? i : remainder);
+		}
+
+	}
+
 	// Description: gets the offset of an array element, given its
 	// coordinates. Considers the differnt sizes of arrays
 	// for different processes.
@@ -121,15 +243,8 @@ public class Heat2DPAdvanced {
 	// will return its offset inside this process.
 	public static int pos(int p, int x, int y) {
 
-		if (myrank == 0) {
-			return p * size * size + x * size + y;
-		}
-
-		if (myrank == nprocs - 1) {
-			return p * size * (numCols[myrank] + 1) + (x - offCols[myrank] + 1) * size + y;
-		}
-
-		return p * size * (numCols[myrank] + 2) + (x - offCols[myrank] + 1) * size + y;
+		// setup() worked out where the block starts, so no branches here
+		return p * phase + (x - left) * height + (y - top);
 
 	}
 
@@ -164,6 +279,11 @@ public class Heat2DPAdvanced {
 		if (nprocs < 2)
 			return;
 
+		if (grid) {
+			shareBlocks(p);
+			return;
+		}
+
 		if (myrank == 0) {
 
 			for (int i = 1; i < nprocs; i++) {
@@ -173,13 +293,41 @@ public class Heat2DPAdvanced {
 
 		} else {
 
-			if (myrank == nprocs - 1) {
-				MPI.COMM_WORLD.Send(z, p * (numCols[myrank] + 1) * size + size,
-						numCols[myrank] * size, MPI.DOUBLE, 0, tag);
-			} else {
-				MPI.COMM_WORLD.Send(z, p * (numCols[myrank] + 2) * size + size,
-						numCols[myrank] * size, MPI.DOUBLE, 0, tag);
-			}
+			MPI.COMM_WORLD.Send(z, pos(p, offCols[myrank], 0),
+					numCols[myrank] * size, MPI.DOUBLE, 0, tag);
+
+		}
+
+	}
+
+	// Description: Shares the blocks of a process grid with rank 0. A block
+	// is not contiguous in the whole matrix, so it is packed column by
+	// column and unpacked by rank 0.
+	// Preconditions: The matrix and processes are initialized with a grid
+	// Postconditions: rank 0 contains all the information inside the other ranks.
+	public static void shareBlocks(int p) throws MPIException {
+
+		if (myrank != 0) {
+
+			double[] block = new double[numCols[cx] * numRows[cy]];
+			for (int i = 0; i < numCols[cx]; i++)
+				System.arraycopy(z, pos(p, offCols[cx] + i, offRows[cy]),
+						block, i * numRows[cy], numRows[cy]);
+			MPI.COMM_WORLD.Send(block, 0, block.length, MPI.DOUBLE, 0, tag);
+			return;
+
+		}
+
+		for (int rank = 1; rank < nprocs; rank++) {
+
+			int[] coords = cart.Coords(rank);
+			int columns = numCols[coords[0]];
+			int rows = numRows[coords[1]];
+			double[] block = new double[columns * rows];
+			MPI.COMM_WORLD.Recv(block, 0, block.length, MPI.DOUBLE, rank, tag);
+			for (int i = 0; i < columns; i++)
+				System.arraycopy(block, i * rows,
+						z, pos(p, offCols[coords[0]] + i, offRows[coords[1]]), rows);
 
 		}
 
@@ -273,6 +421,203 @@ public class Heat2DPAdvanced {
 
 	}
 
+	// Description: Starts sharing the edges between the processes like
+	// shareEdges(), but without waiting, and with the neighbours above and
+	// below too when there is a process grid. Every message has its own
+	// buffer, so no even/odd ordering is needed to avoid deadlocks. No
+	// request is posted on z: mpiJava may pin an array by copying it and
+	// copy it back when the request completes, over the cells computed in
+	// the meantime, so every edge is packed and unpacked by finishEdges().
+	// Preconditions: the mpi processes and the matrix are initialized
+	// Postconditions: returns the pending requests. Until they are done
+	// and finishEdges() ran, the auxiliary columns and rows are stale.
+	public static Request[] startEdges(int p) throws MPIException {
+
+		Request[] requests = new Request[8];
+		int count = 0;
+		int firstX = offCols[cx];
+		int endX = offCols[cx] + numCols[cx];
+		int firstY = offRows[cy];
+		int endY = offRows[cy] + numRows[cy];
+		int rows = numRows[cy];
+		int columns = numCols[cx];
+
+		if (leftRank != MPI.PROC_NULL) {
+			// the rightmost column of the previous rank, unpacked by finishEdges()
+			System.arraycopy(z, pos(p, firstX, firstY), edgesOut[LEFT], 0, rows);
+			requests[count++] = MPI.COMM_WORLD.Irecv(edgesIn[LEFT], 0,
+					rows, MPI.DOUBLE, leftRank, tag);
+			requests[count++] = MPI.COMM_WORLD.Isend(edgesOut[LEFT], 0,
+					rows, MPI.DOUBLE, leftRank, tag);
+		}
+
+		if (rightRank != MPI.PROC_NULL) {
+			// the leftmost column of the next rank, unpacked by finishEdges()
+			System.arraycopy(z, pos(p, endX - 1, firstY), edgesOut[RIGHT], 0, rows);
+			requests[count++] = MPI.COMM_WORLD.Irecv(edgesIn[RIGHT], 0,
+					rows, MPI.DOUBLE, rightRank, tag);
+			requests[count++] = MPI.COMM_WORLD.Isend(edgesOut[RIGHT], 0,
+					rows, MPI.DOUBLE, rightRank, tag);
+		}
+
+		if (upRank != MPI.PROC_NULL) {
+			// the lowest row of the block above, unpacked by finishEdges()
+			for (int x = firstX; x < endX; x++)
+				edgesOut[UP][x - firstX] = z[pos(p, x, firstY)];
+			requests[count++] = MPI.COMM_WORLD.Irecv(edgesIn[UP], 0,
+					columns, MPI.DOUBLE, upRank, tag);
+			requests[count++] = MPI.COMM_WORLD.Isend(edgesOut[UP], 0,
+					columns, MPI.DOUBLE, upRank, tag);
+		}
+
+		if (downRank != MPI.PROC_NULL) {
+			// the highest row of the block below, unpacked by finishEdges()
+			for (int x = firstX; x < endX; x++)
+				edgesOut[DOWN][x - firstX] = z[pos(p, x, endY - 1)];
+			requests[count++] = MPI.COMM_WORLD.Irecv(edgesIn[DOWN], 0,
+					columns, MPI.DOUBLE, downRank, tag);
+			requests[count++] = MPI.COMM_WORLD.Isend(edgesOut[DOWN], 0,
+					columns, MPI.DOUBLE, downRank, tag);
+		}
+
+		return Arrays.copyOf(requests, count);
+
+	}
+
+	// Description: Unpacks the edges received by startEdges() into the
+	// auxiliary columns and rows.
+	// Preconditions: the requests of startEdges(p) are done
+	// Postconditions: the auxiliary columns and rows of phase p are current
+	public static void finishEdges(int p) {
+
+		int firstX = offCols[cx];
+		int endX = offCols[cx] + numCols[cx];
+
+		if (leftRank != MPI.PROC_NULL)
+			System.arraycopy(edgesIn[LEFT], 0, z, pos(p, firstX - 1, offRows[cy]), numRows[cy]);
+
+		if (rightRank != MPI.PROC_NULL)
+			System.arraycopy(edgesIn[RIGHT], 0, z, pos(p, endX, offRows[cy]), numRows[cy]);
+
+		if (upRank != MPI.PROC_NULL) {
+			for (int x = firstX; x < endX; x++)
+				z[pos(p, x, offRows[cy] - 1)] = edgesIn[UP][x - firstX];
+		}
+
+		if (downRank != MPI.PROC_NULL) {
+			for (int x = firstX; x < endX; x++)
+				z[pos(p, x, offRows[cy] + numRows[cy])] = edgesIn[DOWN][x - firstX];
+		}
+
+	}
+
+	// Description: Shares halo columns and rows of every side with the
+	// neighbours, packed into one buffer per side. The columns go first,
+	// over the rows of the block; the rows then span the auxiliary columns
+	// just received, which brings the corners from the diagonal neighbours.
+	// Preconditions: the mpi processes and the matrix are initialized
+	// Postconditions: the auxiliary columns and rows of phase p are current
+	public static void shareHalos(int p) throws MPIException {
+
+		Request[] requests = new Request[4];
+		int count = 0;
+		int firstX = offCols[cx];
+		int endX = offCols[cx] + numCols[cx];
+		int firstY = offRows[cy];
+		int endY = offRows[cy] + numRows[cy];
+		int rows = numRows[cy];
+		int block = halo * rows;
+
+		if (leftRank != MPI.PROC_NULL) {
+			for (int i = 0; i < halo; i++)
+				System.arraycopy(z, pos(p, firstX + i, firstY), edgesOut[LEFT], i * rows, rows);
+			requests[count++] = MPI.COMM_WORLD.Irecv(edgesIn[LEFT], 0,
+					block, MPI.DOUBLE, leftRank, tag);
+			requests[count++] = MPI.COMM_WORLD.Isend(edgesOut[LEFT], 0,
+					block, MPI.DOUBLE, leftRank, tag);
+		}
+
+		if (rightRank != MPI.PROC_NULL) {
+			for (int i = 0; i < halo; i++)
+				System.arraycopy(z, pos(p, endX - halo + i, firstY), edgesOut[RIGHT], i * rows, rows);
+			requests[count++] = MPI.COMM_WORLD.Irecv(edgesIn[RIGHT], 0,
+					block, MPI.DOUBLE, rightRank, tag);
+			requests[count++] = MPI.COMM_WORLD.Isend(edgesOut[RIGHT], 0,
+					block, MPI.DOUBLE, rightRank, tag);
+		}
+
+		Request.Waitall(Arrays.copyOf(requests, count));
+
+		for (int i = 0; i < halo; i++) {
+			if (leftRank != MPI.PROC_NULL)
+				System.arraycopy(edgesIn[LEFT], i * rows, z, pos(p, firstX - halo + i, firstY), rows);
+			if (rightRank != MPI.PROC_NULL)
+				System.arraycopy(edgesIn[RIGHT], i * rows, z, pos(p, endX + i, firstY), rows);
+		}
+
+		if (upRank == MPI.PROC_NULL && downRank == MPI.PROC_NULL)
+			return;
+
+		// a column's rows are contiguous, so rows are packed column by column
+		count = 0;
+		int fromX = firstX - ((leftRank != MPI.PROC_NULL) ? halo : 0);
+		int toX = endX + ((rightRank != MPI.PROC_NULL) ? halo : 0);
+		block = halo * (toX - fromX);
+
+		if (upRank != MPI.PROC_NULL) {
+			for (int x = fromX; x < toX; x++)
+				System.arraycopy(z, pos(p, x, firstY), edgesOut[UP], (x - fromX) * halo, halo);
+			requests[count++] = MPI.COMM_WORLD.Irecv(edgesIn[UP], 0,
+					block, MPI.DOUBLE, upRank, tag);
+			requests[count++] = MPI.COMM_WORLD.Isend(edgesOut[UP], 0,
+					block, MPI.DOUBLE, upRank, tag);
+		}
+
+		if (downRank != MPI.PROC_NULL) {
+			for (int x = fromX; x < toX; x++)
+				System.arraycopy(z, pos(p, x, endY - halo), edgesOut[DOWN], (x - fromX) * halo, halo);
+			requests[count++] = MPI.COMM_WORLD.Irecv(edgesIn[DOWN], 0,
+					block, MPI.DOUBLE, downRank, tag);
+			requests[count++] = MPI.COMM_WORLD.Isend(edgesOut[DOWN], 0,
+					block, MPI.DOUBLE, downRank, tag);
+		}
+
+		Request.Waitall(Arrays.copyOf(requests, count));
+
+		for (int x = fromX; x < toX; x++) {
+			if (upRank != MPI.PROC_NULL)
+				System.arraycopy(edgesIn[UP], (x - fromX) * halo, z, pos(p, x, firstY - halo), halo);
+			if (downRank != MPI.PROC_NULL)
+				System.arraycopy(edgesIn[DOWN], (x - fromX) * halo, z, pos(p, x, endY), halo);
+		}
+
+	}
+
+	// Description: Prints how much of the edge exchange was hidden behind
+	// computation: the time computing while the edges were in flight over
+	// that time plus the time left waiting for them, summed over the ranks.
+	// Preconditions: compute() ran with overlap
+	// Postconditions: rank 0 prints the overlap ratio
+	public static void reportOverlap() throws MPIException {
+
+		double[] times = { overlapNanos / 1e6, waitNanos / 1e6 };
+		if (myrank != 0) {
+			MPI.COMM_WORLD.Send(times, 0, 2, MPI.DOUBLE, 0, tag);
+			return;
+		}
+
+		double[] other = new double[2];
+		for (int i = 1; i < nprocs; i++) {
+			MPI.COMM_WORLD.Recv(other, 0, 2, MPI.DOUBLE, i, tag);
+			times[0] += other[0];
+			times[1] += other[1];
+		}
+		double total = times[0] + times[1];
+		System.out.printf("Overlap ratio = %.3f (computing %.0f ms, waiting %.0f ms)%n",
+				(total == 0) ? 1.0 : times[0] / total, times[0], times[1]);
+
+	}
+
 	// Description: The heat simulation. The loop that runs euler's equation.
 	// Precondition: The matrix and mpi process are initialized
 	// Postconditions: the simulation is done and printed to the console
@@ -282,65 +627,163 @@ public class Heat2DPAdvanced {
 		for (int t = 0; t < max_time; t++) {
 			int p = t % 2; // p = 0 or 1: indicates the phase
 
+			// Get the starting and ending position for every block. Until the
+			// next exchange, a deep halo still holds current cells of the
+			// neighbours, one layer fewer every step, which are computed too.
+			int extra = halo - 1 - t % halo;
+			int initialX = offCols[cx] - ((leftRank != MPI.PROC_NULL) ? extra : 0);
+			int maxX = offCols[cx] + numCols[cx] + ((rightRank != MPI.PROC_NULL) ? extra : 0);
+			int initialY = offRows[cy] - ((upRank != MPI.PROC_NULL) ? extra : 0);
+			int maxY = offRows[cy] + numRows[cy] + ((downRank != MPI.PROC_NULL) ? extra : 0);
+
 			// two left-most columns are made identical
-			if (myrank == 0) {
-				for (int y = 0; y < size; y++) {
-					z[pos(p, 0, y)] = z[pos(p, 1, y)];
-				}
+			if (cx == 0) {
+				System.arraycopy(z, pos(p, 1, initialY), z, pos(p, 0, initialY), maxY - initialY);
 			}
 
 			// right most columns are made identical
-			if (myrank == nprocs - 1) {
-				for (int y = 0; y < size; y++) {
-					z[pos(p, size - 1, y)] = z[pos(p, size - 2, y)];
-				}
+			if (cx == px - 1) {
+				System.arraycopy(z, pos(p, size - 2, initialY), z, pos(p, size - 1, initialY), maxY - initialY);
 			}
 
-			// Get the starting and ending position for every stripe
-			int initialX = offCols[myrank];
-			int maxX = offCols[myrank] + numCols[myrank];
-
 			// two upper and lower rows are made identical
-			for (int x = initialX; x < maxX; x++) {
-				z[pos(p, x, 0)] = z[pos(p, x, 1)];
-				z[pos(p, x, size - 1)] = z[pos(p, x, size - 2)];
+			for (int c = pos(p, initialX, 0); c < pos(p, maxX, 0); c += height) {
+				if (cy == 0)
+					z[c] = z[c + 1];
+				if (cy == py - 1)
+					z[c + size - 1] = z[c + size - 2];
 			}
 
 			// keep heating the top as long as t < heat_time
-			// Could be made more efficient with a bunch of if-statements
-			// but I don't feel it a good investment of my time.
-			if (t < heat_time) {
-				for (int x = size / 3; x < size / 3 * 2; x++)
-					if (x >= initialX && x < maxX)
-						z[pos(p, x, 0)] = 19.0; // heat
+			if (t < heat_time && cy == 0) {
+				int fromX = Math.max(size / 3, initialX);
+				int toX = Math.min(size / 3 * 2, maxX);
+				for (int x = fromX; x < toX; x++)
+					z[pos(p, x, 0)] = 19.0; // heat
+			}
+
+			int p2 = (p + 1) % 2;
+			boolean print = interval != 0 && (t % interval == 0 || t == max_time - 1);
+			initialX = Math.max(initialX, 1);
+			maxX = Math.min(maxX, size - 1);
+			initialY = Math.max(initialY, 1);
+			maxY = Math.min(maxY, size - 1);
+
+			if (overlap) {
+
+				// the cells next to a neighbour wait for its edge
+				int innerX = (leftRank == MPI.PROC_NULL) ? initialX : Math.min(initialX + 1, maxX);
+				int outerX = Math.max(innerX, (rightRank == MPI.PROC_NULL) ? maxX : maxX - 1);
+				int innerY = (upRank == MPI.PROC_NULL) ? initialY : Math.min(initialY + 1, maxY);
+				int outerY = Math.max(innerY, (downRank == MPI.PROC_NULL) ? maxY : maxY - 1);
+
+				long start = System.nanoTime();
+				Request[] edges = startEdges(p);
+				eulerTiles(p, p2, innerX, outerX, innerY, outerY);
+				long computed = System.nanoTime();
+				Request.Waitall(edges);
+				finishEdges(p);
+				overlapNanos += computed - start;
+				waitNanos += System.nanoTime() - computed;
+
+				// display intermediate results
+				if (print) {
+					shareMatrix(p);
+					printMatrix(t);
+				}
+
+				// the frame left around the inner cells
+				euler(p, p2, initialX, innerX, initialY, maxY);
+				euler(p, p2, outerX, maxX, initialY, maxY);
+				euler(p, p2, innerX, outerX, initialY, innerY);
+				euler(p, p2, innerX, outerX, outerY, maxY);
+				continue;
 			}
 
 			// Synchronize the processes
-			shareEdges(p);
+			if (halo > 1) {
+				if (t % halo == 0)
+					shareHalos(p);
+			} else if (grid) {
+				Request.Waitall(startEdges(p));
+				finishEdges(p);
+			} else {
+				shareEdges(p);
+			}
 
 			// display intermediate results
-			if (interval != 0 && (t % interval == 0 || t == max_time - 1)) {
+			if (print) {
 				shareMatrix(p);
 				printMatrix(t);
 			}
 
 			// perform forward Euler method
-			int p2 = (p + 1) % 2;
-			initialX = (myrank == 0) ? 1 : offCols[myrank];
-			maxX = (myrank == nprocs - 1) ? size - 1 : offCols[myrank] + numCols[myrank];
-			for (int x = initialX; x < maxX; x++) {
+			eulerTiles(p, p2, initialX, maxX, initialY, maxY);
 
-				for (int y = 1; y < size - 1; y++) {
+		} // end of simulation
 
-					z[pos(p2, x, y)] = z[pos(p, x, y)] +
-							r * (z[pos(p, x + 1, y)] - 2 * z[pos(p, x, y)] + z[pos(p, x - 1, y)]) +
-							r * (z[pos(p, x, y + 1)] - 2 * z[pos(p, x, y)] + z[pos(p, x, y - 1)]);
+	}
 
-				}
+	// Description: forward Euler method over whole columns, split into one
+	// tile of contiguous columns per thread. The main thread computes the
+	// last tile and then waits for the others, which is the barrier that
+	// ends the time step.
+	// Preconditions: as for euler()
+	// Postconditions: as for euler()
+	public static void eulerTiles(int p, int p2, int fromX, int toX, int fromY, int toY) {
+
+		if (pool == null) {
+			euler(p, p2, fromX, toX, fromY, toY);
+			return;
+		}
+
+		int width = toX - fromX;
+		Future<?>[] tiles = new Future<?>[threads - 1];
+		for (int i = 0; i < threads - 1; i++) {
+			int tileFrom = fromX + (int) ((long) width * i / threads);
+			int tileTo = fromX + (int) ((long) width * (i + 1) / threads);
+			tiles[i] = pool.submit(() -> euler(p, p2, tileFrom, tileTo, fromY, toY));
+		}
+		euler(p, p2, fromX + (int) ((long) width * (threads - 1) / threads), toX, fromY, toY);
+
+		try {
+			for (Future<?> tile : tiles)
+				tile.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IllegalStateException("a tile failed", e);
+		}
+
+	}
+
+	// Description: forward Euler method over a rectangle of cells. Walks
+	// every column with unit stride from offsets worked out once per
+	// column, so the inner loop has no calls or branches and the JIT can
+	// unroll and vectorize it.
+	// Preconditions: the cells around the rectangle are current in phase p.
+	// The rectangle does not touch the sides of the matrix.
+	// Postconditions: rows fromY through toY - 1 of columns fromX through
+	// toX - 1 are computed into phase p2.
+	public static void euler(int p, int p2, int fromX, int toX, int fromY, int toY) {
+
+		for (int x = fromX; x < toX; x++) {
+
+			int c = pos(p, x, 0); // this column now
+			int w = c - height; // the column to its left
+			int e = c + height; // the column to its right
+			int n = pos(p2, x, 0); // this column next
+
+			for (int y = fromY; y < toY; y++) {
+
+				// the same operations in the same order as ever, so the
+				// results are identical to the last bit
+				double v = z[c + y];
+				z[n + y] = v +
+						r * (z[e + y] - 2 * v + z[w + y]) +
+						r * (z[c + y + 1] - 2 * v + z[c + y - 1]);
 
 			}
 
-		} // end of simulation
+		}
 
 	}
 }
@@ -11,6 +11,11 @@ mpirun -n 2 java Heat2DPAdvanced 20 100 70 1 > o2.txt
 mpirun -n 3 java Heat2DPAdvanced 20 100 70 1 > o3.txt
 mpirun -n 4 java Heat2DPAdvanced 20 100 70 1 > o4.txt
 mpirun -n 5 java Heat2DPAdvanced 20 100 70 1 > o5.txt
+mpirun -n 3 java -Dheat.threads=4 Heat2DPAdvanced 20 100 70 1 > o6.txt
+mpirun -n 4 java -Dheat.overlap=true Heat2DPAdvanced 20 100 70 1 | grep -v Overlap > o7.txt
+mpirun -n 6 java -Dheat.grid=2d Heat2DPAdvanced 20 100 70 1 > o8.txt
+mpirun -n 4 java -Dheat.halo=3 Heat2DPAdvanced 20 100 70 1 > o9.txt
+mpirun -n 6 java -Dheat.grid=2d -Dheat.halo=3 Heat2DPAdvanced 20 100 70 1 > o10.txt
 
 
 echo "o0 vs o1"
@@ -62,6 +67,51 @@ echo ; echo ; echo
 
 
 
+echo "o0 vs o6 (threads)"
+diff -s o0.txt o6.txt
+
+
+echo ; echo ; echo 
+
+
+
+
+echo "o0 vs o7 (overlap)"
+diff -s o0.txt o7.txt
+
+
+echo ; echo ; echo 
+
+
+
+
+echo "o0 vs o8 (2d grid)"
+diff -s o0.txt o8.txt
+
+
+echo ; echo ; echo 
+
+
+
+
+echo "o0 vs o9 (halo)"
+diff -s o0.txt o9.txt
+
+
+echo ; echo ; echo 
+
+
+
+
+echo "o0 vs o10 (2d grid, halo)"
+diff -s o0.txt o10.txt
+
+
+echo ; echo ; echo 
+
+
+
+
 echo "Test finished"
 
 echo ; echo ; echo 